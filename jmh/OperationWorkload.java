@@ -0,0 +1,208 @@
+import benchmarks.Workload;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.SplittableRandom;
+
+// Files and keys for `benchmarks.OperationBenchmark`.
+// Keys of the loaded files are 4n (primary pages) and 4n + 1 (overflow), gets miss 4n + 3 and inserts use 4n + 2.
+public class OperationWorkload implements Workload {
+    // Consecutive keys inserted by `insertClustered` before it jumps elsewhere
+    static final int CLUSTER_KEYS = 64;
+
+    private ISAM isam;
+    private String operation;
+    private int[] keys;
+    private int next;
+    private long operations;
+    private ISAM.IOStats before;
+    private final TRecord dst = new TRecord();
+
+    @Override
+    public void load(String operation, int pageSize, double overflowThreshold, int recordAmount, boolean multiLevelIndex) throws IOException {
+        close();
+        isam = new ISAM("bench_index.dat", "bench_records.dat", "bench_overflow.dat", pageSize, PagedFile.DEFAULT_BUFFER_FRAMES, IPageStorage.Mode.RANDOM_ACCESS);
+        isam.recordOperationStats = false;
+        // Levels are built by the bulk load
+        isam.multiLevelIndex = multiLevelIndex;
+        isam.setOverflowThreshold(overflowThreshold);
+        SplittableRandom random = new SplittableRandom(pageSize * 31L + recordAmount);
+        ArrayList<Integer> existing = load(isam, recordAmount, overflowThreshold, random);
+        isam.flush();
+        // Reorganizations triggered by the operations count as their cost
+        isam.autoReorganization = true;
+
+        this.operation = operation;
+        keys = keysFor(operation, recordAmount, existing, random);
+        next = 0;
+        operations = 0;
+        before = isam.getStats();
+    }
+
+    // Lookups and updates start over when keys run out, inserts and deletes would not do the same work again
+    private int nextKey() {
+        if (next == keys.length) {
+            if (!operation.startsWith("get") && !operation.equals("update")) {
+                throw new IllegalStateException("No keys left for " + operation + ", use more records");
+            }
+            next = 0;
+        }
+        operations++;
+        return keys[next++];
+    }
+
+    @Override
+    public boolean get() throws IOException {
+        return isam.get(nextKey(), dst);
+    }
+
+    @Override
+    public int insert() throws IOException {
+        int key = nextKey();
+        return isam.insert(new TRecord(key, key, key, key));
+    }
+
+    @Override
+    public int update() throws IOException {
+        int key = nextKey();
+        return isam.update(new TRecord(key, -key, key, key));
+    }
+
+    @Override
+    public int delete() throws IOException {
+        return isam.delete(nextKey());
+    }
+
+    @Override
+    public int scan() throws IOException {
+        operations++;
+        int amount = 0;
+        ScanCursor cursor = isam.scan(0, Integer.MAX_VALUE);
+        while (cursor.hasNext()) {
+            cursor.next();
+            amount++;
+        }
+        return amount;
+    }
+
+    @Override
+    public int reorganize() throws IOException {
+        operations++;
+        return isam.reorganize(true);
+    }
+
+    @Override
+    public long operations() {
+        return operations;
+    }
+
+    @Override
+    public long pageReads() {
+        return isam.getStats().minus(before).totalReads();
+    }
+
+    @Override
+    public long pageWrites() {
+        return isam.getStats().minus(before).totalWrites();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isam != null) {
+            isam.cleanupFull();
+            isam.close();
+            isam = null;
+        }
+    }
+
+    // Bulk loads `recordAmount` keys and inserts overflow records up to half of `overflowThreshold`,
+    // so the files are as far from reorganization as they usually are. Returns keys of all records.
+    private static ArrayList<Integer> load(ISAM isam, int recordAmount, double overflowThreshold, SplittableRandom random) throws IOException {
+        ArrayList<Integer> existing = new ArrayList<>();
+        isam.bulkLoad(new Iterator<>() {
+            int n = 0;
+
+            @Override
+            public boolean hasNext() {
+                return n < recordAmount;
+            }
+
+            @Override
+            public TRecord next() {
+                int key = 4 * n++;
+                existing.add(key);
+                return new TRecord(key, key, key, key);
+            }
+        });
+        int[] overflow = shuffled(recordAmount, random);
+        int overflowAmount = (int) (recordAmount * overflowThreshold / 2);
+        for (int i = 0; i < overflowAmount; i++) {
+            int key = 4 * overflow[i] + 1;
+            isam.insert(new TRecord(key, key, key, key));
+            existing.add(key);
+        }
+        return existing;
+    }
+
+    // Empty for operations that take no key
+    private static int[] keysFor(String operation, int recordAmount, ArrayList<Integer> existing, SplittableRandom random) {
+        int[] keys;
+        switch (operation) {
+            case "getHit", "update", "delete" -> {
+                // Every existing key once, so deletes always find their record
+                keys = new int[existing.size()];
+                int[] order = shuffled(existing.size(), random);
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = existing.get(order[i]);
+                }
+            }
+            case "getMiss" -> {
+                keys = shuffled(recordAmount, random);
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = 4 * keys[i] + 3;
+                }
+            }
+            case "insertSequential" -> {
+                keys = new int[recordAmount];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = 4 * (recordAmount + i);
+                }
+            }
+            case "insertRandom" -> {
+                keys = shuffled(recordAmount, random);
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = 4 * keys[i] + 2;
+                }
+            }
+            case "insertClustered" -> {
+                // Runs of neighbouring keys in random order of the runs
+                int runs = (recordAmount + CLUSTER_KEYS - 1) / CLUSTER_KEYS;
+                int[] order = shuffled(runs, random);
+                keys = new int[recordAmount];
+                int n = 0;
+                for (int run : order) {
+                    for (int i = run * CLUSTER_KEYS; i < Math.min((run + 1) * CLUSTER_KEYS, recordAmount); i++) {
+                        keys[n++] = 4 * i + 2;
+                    }
+                }
+            }
+            default -> keys = new int[0];
+        }
+        return keys;
+    }
+
+    private static int[] shuffled(int amount, SplittableRandom random) {
+        int[] values = new int[amount];
+        for (int i = 0; i < amount; i++) {
+            values[i] = i;
+        }
+        for (int i = amount - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = values[i];
+            values[i] = values[j];
+            values[j] = t;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,180 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Time and page I/O of single `ISAM` operations for every combination of page size, overflow threshold,
+// record amount and index kind (`true` for the multi-level index).
+// Lookups, updates and scans run on files loaded once per trial. Inserts, deletes and reorganizations change
+// the files, so they are measured as single shots of `BATCH` operations on files loaded again for every iteration.
+// Build and run: mvn -Pjmh package && java -jar target/benchmarks.jar [regexp] [-p name=v1,v2 ...]
+// Lookups in 10M records (312k primary pages) with the flat index, whose entries are all in memory,
+// and with the multi-level index, whose ~5k pages go through the buffer pool:
+//   java -jar target/benchmarks.jar 'get(Hit|Miss)' -p pageSize=64 -p overflowThreshold=0.5 -p recordAmount=10000000 -p multiLevelIndex=false,true
+@Fork(1)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OperationBenchmark {
+    static final int BATCH = 1000;
+
+    // Shared with `PageIO`, which JMH would otherwise give its own copy. Benchmarks run with one thread.
+    @State(Scope.Benchmark)
+    public static class Files {
+        @Param({"16", "64"})
+        public int pageSize;
+        @Param({"0.2", "0.5"})
+        public double overflowThreshold;
+        @Param({"20000", "100000"})
+        public int recordAmount;
+        @Param({"false"})
+        public boolean multiLevelIndex;
+
+        Workload workload;
+
+        @Setup(Level.Iteration)
+        public void load(BenchmarkParams params) throws Exception {
+            if (workload != null && params.getMode() != Mode.SingleShotTime) {
+                return;
+            }
+            if (workload == null) {
+                workload = (Workload) Class.forName("OperationWorkload").getDeclaredConstructor().newInstance();
+            }
+            String benchmark = params.getBenchmark();
+            workload.load(benchmark.substring(benchmark.lastIndexOf('.') + 1), pageSize, overflowThreshold, recordAmount, multiLevelIndex);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            workload.close();
+        }
+    }
+
+    // Page reads and writes per operation, including reorganizations the operations trigger.
+    // JMH adds up event counters of all measured iterations, so every iteration reports its share of the mean.
+    // They are read after the files are closed, so they are taken when the iteration ends.
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class PageIO {
+        private Workload workload;
+        private long operations;
+        private long reads;
+        private long writes;
+        private int iterations;
+        private double readsPerOp;
+        private double writesPerOp;
+
+        @Setup(Level.Iteration)
+        public void start(Files files, BenchmarkParams params) {
+            workload = files.workload;
+            operations = workload.operations();
+            reads = workload.pageReads();
+            writes = workload.pageWrites();
+            iterations = params.getMeasurement().getCount() * Math.max(1, params.getForks());
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() {
+            long ops = workload.operations() - operations;
+            readsPerOp = ops == 0 ? 0 : (double) (workload.pageReads() - reads) / ops / iterations;
+            writesPerOp = ops == 0 ? 0 : (double) (workload.pageWrites() - writes) / ops / iterations;
+        }
+
+        public double readsPerOp() {
+            return readsPerOp;
+        }
+
+        public double writesPerOp() {
+            return writesPerOp;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public boolean getHit(Files files, PageIO io) throws IOException {
+        return files.workload.get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public boolean getMiss(Files files, PageIO io) throws IOException {
+        return files.workload.get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public int update(Files files, PageIO io) throws IOException {
+        return files.workload.update();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public int scan(Files files, PageIO io) throws IOException {
+        return files.workload.scan();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    @OperationsPerInvocation(BATCH)
+    public int insertSequential(Files files, PageIO io) throws IOException {
+        return insertBatch(files.workload);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    @OperationsPerInvocation(BATCH)
+    public int insertRandom(Files files, PageIO io) throws IOException {
+        return insertBatch(files.workload);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    @OperationsPerInvocation(BATCH)
+    public int insertClustered(Files files, PageIO io) throws IOException {
+        return insertBatch(files.workload);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    @OperationsPerInvocation(BATCH)
+    public int delete(Files files, PageIO io) throws IOException {
+        int result = 0;
+        for (int i = 0; i < BATCH; i++) {
+            result += files.workload.delete();
+        }
+        return result;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public int reorganize(Files files, PageIO io) throws IOException {
+        return files.workload.reorganize();
+    }
+
+    private static int insertBatch(Workload workload) throws IOException {
+        int result = 0;
+        for (int i = 0; i < BATCH; i++) {
+            result += workload.insert();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,31 @@
+package benchmarks;
+
+import java.io.IOException;
+
+// Files and keys of one `OperationBenchmark` case. JMH only generates benchmarks of named packages and the files
+// are in the default package, so the implementation (`OperationWorkload`) is loaded by name.
+public interface Workload {
+    // Creates files for `operation` (a benchmark method name), operations take their keys from the start again
+    void load(String operation, int pageSize, double overflowThreshold, int recordAmount, boolean multiLevelIndex) throws IOException;
+
+    boolean get() throws IOException;
+
+    int insert() throws IOException;
+
+    int update() throws IOException;
+
+    int delete() throws IOException;
+
+    int scan() throws IOException;
+
+    int reorganize() throws IOException;
+
+    // Counted since the files were created
+    long operations();
+
+    long pageReads();
+
+    long pageWrites();
+
+    void close() throws IOException;
+}
@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Fixed amount of page frames with CLOCK (second chance) eviction
+public class BufferPool<T extends Page<?>> {
+    static class Frame<T> {
+        T page;
+        boolean dirty;
+        boolean referenced;
+        int pinCount;
+    }
+
+    public static final int MIN_FRAMES = 2;
+
+    private final Frame<T>[] frames;
+    private final HashMap<Integer, Frame<T>> pageTable;
+    private int clockHand;
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int frameAmount) {
+        if (frameAmount < MIN_FRAMES) {
+            throw new IllegalArgumentException("Buffer pool needs at least " + MIN_FRAMES + " frames");
+        }
+        frames = (Frame<T>[]) new Frame<?>[frameAmount];
+        for (int i = 0; i < frameAmount; i++) {
+            frames[i] = new Frame<>();
+        }
+        pageTable = new HashMap<>();
+        clockHand = 0;
+    }
+
+    public int capacity() {
+        return frames.length;
+    }
+
+    // Returns cached page and marks it as recently used
+    public T get(int pageNum) {
+        Frame<T> f = pageTable.get(pageNum);
+        if (f == null) {
+            return null;
+        }
+        f.referenced = true;
+        return f.page;
+    }
+
+    // Returns cached page without touching eviction state
+    public T peek(int pageNum) {
+        Frame<T> f = pageTable.get(pageNum);
+        return f == null ? null : f.page;
+    }
+
+    public int size() {
+        return pageTable.size();
+    }
+
+    public boolean isFull() {
+        return pageTable.size() == frames.length;
+    }
+
+    // Page has to be put into a free frame, see `victim()` and `remove()`
+    public void put(T page, boolean dirty) {
+        if (pageTable.containsKey(page.pageNum)) {
+            throw new IllegalStateException("Page " + page.pageNum + " is already in buffer pool");
+        }
+        for (Frame<T> f : frames) {
+            if (f.page == null) {
+                f.page = page;
+                f.dirty = dirty;
+                f.referenced = true;
+                f.pinCount = 0;
+                pageTable.put(page.pageNum, f);
+                return;
+            }
+        }
+        throw new IllegalStateException("No free buffer frame");
+    }
+
+    public boolean hasUnpinned() {
+        for (Frame<T> f : frames) {
+            if (f.page != null && f.pinCount == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns page that should be evicted next, it stays in the pool until `remove()`
+    public T victim() {
+        // Two full sweeps are enough to clear every reference bit once
+        for (int i = 0; i < frames.length * 2; i++) {
+            Frame<T> f = frames[clockHand];
+            clockHand = (clockHand + 1) % frames.length;
+
+            if (f.page == null || f.pinCount > 0) {
+                continue;
+            }
+            if (f.referenced) {
+                f.referenced = false;
+                continue;
+            }
+            return f.page;
+        }
+        throw new IllegalStateException("All buffer frames are pinned");
+    }
+
+    public void remove(int pageNum) {
+        Frame<T> f = pageTable.remove(pageNum);
+        if (f == null) {
+            return;
+        }
+        f.page = null;
+        f.dirty = false;
+        f.referenced = false;
+        f.pinCount = 0;
+    }
+
+    public boolean isDirty(int pageNum) {
+        Frame<T> f = pageTable.get(pageNum);
+        return f != null && f.dirty;
+    }
+
+    public void markDirty(int pageNum) {
+        Frame<T> f = pageTable.get(pageNum);
+        if (f == null) {
+            throw new IllegalStateException("Page " + pageNum + " is not in buffer pool");
+        }
+        f.dirty = true;
+    }
+
+    public void pin(int pageNum) {
+        Frame<T> f = pageTable.get(pageNum);
+        if (f == null) {
+            throw new IllegalStateException("Page " + pageNum + " is not in buffer pool");
+        }
+        f.pinCount++;
+    }
+
+    public void unpin(int pageNum) {
+        Frame<T> f = pageTable.get(pageNum);
+        if (f == null || f.pinCount == 0) {
+            throw new IllegalStateException("Page " + pageNum + " is not pinned");
+        }
+        f.pinCount--;
+    }
+
+    // Returns dirty pages and marks them as clean
+    public ArrayList<T> takeDirtyPages() {
+        ArrayList<T> dirtyPages = new ArrayList<>();
+        for (Frame<T> f : frames) {
+            if (f.page != null && f.dirty) {
+                dirtyPages.add(f.page);
+                f.dirty = false;
+            }
+        }
+        return dirtyPages;
+    }
+}
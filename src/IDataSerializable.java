@@ -1,35 +1,24 @@
-import java.io.*;
+import java.nio.ByteBuffer;
 
+// Objects are written to and read from a reused buffer, so (de)serialization does not allocate
 public interface IDataSerializable {
-    void serializeData(DataOutputStream dos) throws IOException;
-    void deserializeData(DataInputStream dis) throws IOException;
+    void serializeData(ByteBuffer buffer);
+    void deserializeData(ByteBuffer buffer);
 
-    default byte[] serialize() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(getSizeBytes());
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        try {
-            this.serializeData(dos);
-            dos.flush();
-            return baos.toByteArray();
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to serialize " + this,e);
+    default void serialize(ByteBuffer buffer) {
+        if (buffer.capacity() != getSizeBytes()) {
+            throw new RuntimeException("Invalid byte size of " + this);
         }
+        buffer.clear();
+        this.serializeData(buffer);
     }
 
-    default void deserialize(byte[] data) {
-        if (data.length != getSizeBytes()) {
+    default void deserialize(ByteBuffer buffer) {
+        if (buffer.capacity() != getSizeBytes()) {
             throw new RuntimeException("Invalid byte size of " + this);
         }
-
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        DataInputStream dis = new DataInputStream(bais);
-
-        try {
-            this.deserializeData(dis);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to deserialize " + this, e);
-        }
+        buffer.clear();
+        this.deserializeData(buffer);
     }
 
     int getSizeBytes();
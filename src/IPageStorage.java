@@ -0,0 +1,23 @@
+import java.io.IOException;
+
+public interface IPageStorage {
+    // Returns amount of read bytes or -1 if `pos` is beyond the end of the file
+    int read(long pos, byte[] b) throws IOException;
+    void write(long pos, byte[] b) throws IOException;
+    // Drops everything past `length`
+    void setLength(long length) throws IOException;
+    // Releases the file, the storage cannot be used afterwards
+    void close() throws IOException;
+
+    enum Mode {
+        RANDOM_ACCESS,
+        MEMORY_MAPPED
+    }
+
+    static IPageStorage open(String filename, Mode mode) throws IOException {
+        if (mode == Mode.MEMORY_MAPPED) {
+            return new MappedPageStorage(filename);
+        }
+        return new RandomAccessPageStorage(filename);
+    }
+}
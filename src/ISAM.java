@@ -1,6 +1,21 @@
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class ISAM {
     String indexFile = null;
@@ -8,81 +23,229 @@ public class ISAM {
     String overflowFile = null;
 
     public int pageSize = 0;
+    public int bufferFrames = PagedFile.DEFAULT_BUFFER_FRAMES;
+    public IPageStorage.Mode storageMode = IPageStorage.Mode.RANDOM_ACCESS;
 
     Index index;
     TRecords records;
-    ArrayList<IOStats> operationsStats;
+    OperationStats operationsStats;
 
 //    IOStats beforeLastOperation = new IOStats();
 
-    public double overflowThreshold = 0.5; // 50%
-    public double deletionThreshold = 0.2; // 20%
-    public boolean autoReorganization = false;
+    // Volatile, as they can be changed at runtime through `ISAMMonitor`
+    public volatile double overflowThreshold = 0.5; // 50%
+    public volatile double deletionThreshold = 0.2; // 20%
+    public volatile boolean autoReorganization = false;
+    // Most overflow records sorted in memory by reorganization, more of them are sorted in runs on disk
+    public int reorganizationRunSize = 1 << 16;
+    // With more than one thread, key ranges of the primary area are merged in parallel
+    public int reorganizationThreads = 1;
+    // Reorganization that is not forced rebuilds only spans around the most damaged primary pages
+    public boolean localReorganization = false;
+    // With automatic reorganization, the files are rebuilt on a background thread instead of inside the operation
+    public boolean backgroundReorganization = false;
+    // I/O of every operation (for `exportStatsToCSV()`), only the last ones are kept unless they are streamed to CSV
+    public boolean recordOperationStats = true;
+    // Primary pages whose overflow records share overflow pages (see `setOverflowClusterPages()`)
+    private int overflowClusterPages = 0;
+    // With more than 0, a full primary page is split when an insert would make one of its overflow chains longer
+    // (see `PageSplitter`). Works with a sorted index without levels, other inserts go to overflow as usual.
+    public int splitChainLength = 0;
+    // Build multi-level index during reorganization, instead of keeping the whole index in memory
+    public boolean multiLevelIndex = false;
+
+    public enum Operation {
+        GET,
+        INSERT,
+        INSERT_BATCH,
+        UPDATE,
+        DELETE,
+        BULK_LOAD,
+        REORGANIZATION
+    }
+
+    // Wall time of every call (with reorganization it ran inline), reorganizations are also recorded on their own
+    private final EnumMap<Operation, LatencyHistogram> latencies = newLatencies();
+    private volatile long lastReorganizationNanos = -1;
+    // Name of the registered `ISAMMonitor`, null if there is none
+    private ObjectName monitorName;
+
+    // Shared by every operation on the files, exclusive for the ones replacing them (reorganization, bulk load, cleanup)
+    private final ReentrantReadWriteLock structureLock = new ReentrantReadWriteLock();
+    // Writers are serialized, so they only have to be isolated from readers (see page latches)
+    private final ReentrantLock writerLock = new ReentrantLock();
+
+    // Logs replayed under the exclusive lock are short, longer ones are replayed while writers keep going
+    private static final int REPLAY_UNDER_LOCK = 256;
+    // Records copied by background reorganization per hold of the shared lock, so a waiting writer is not held up
+    // (and does not hold up the operations queued behind it) for the whole copy
+    private static final int COPY_CHUNK = 4096;
+
+    private enum MutationType {
+        INSERT,
+        UPDATE,
+        DELETE
+    }
+
+    private static class LoggedMutation {
+        final MutationType type;
+        final TRecord record;
+
+        LoggedMutation(MutationType type, TRecord record) {
+            this.type = type;
+            this.record = new TRecord(record.key, record.a, record.b, record.h);
+        }
+    }
 
-    private final String tempIndexFile = "temp_index.dat";
-    private final String tempRecordFile = "temp_record.dat";
+    // Mutations done while background reorganization copies the files, not null only meanwhile. Guarded by `writerLock`.
+    private ArrayList<LoggedMutation> reorganizationLog;
+    private Thread reorganizationThread;
+    private volatile IOException reorganizationFailure;
 
     public ISAM(String indexFile, String recordsFile, String overflowFile, int pageSize) throws IOException {
+        this(indexFile, recordsFile, overflowFile, pageSize, PagedFile.DEFAULT_BUFFER_FRAMES, IPageStorage.Mode.RANDOM_ACCESS);
+    }
+
+    // `bufferFrames` is the amount of pages cached in memory for each of the files
+    public ISAM(String indexFile, String recordsFile, String overflowFile, int pageSize, int bufferFrames, IPageStorage.Mode storageMode) throws IOException {
         this.indexFile = indexFile;
         this.recordsFile = recordsFile;
         this.overflowFile = overflowFile;
+        this.bufferFrames = bufferFrames;
+        this.storageMode = storageMode;
         cleanupFull();
         this.pageSize = pageSize;
-        index = new Index(indexFile, pageSize);
-        records = new TRecords(recordsFile, overflowFile, pageSize);
+        index = new Index(indexFile, pageSize, bufferFrames, storageMode);
+        records = newTRecords(recordsFile);
+
+        operationsStats = new OperationStats(OperationStats.DEFAULT_CAPACITY, getStats());
+    }
+
+    // Opens files left by `flush()` of an earlier instance, only file headers and resident index are read
+    public static ISAM open(String indexFile, String recordsFile, String overflowFile, int bufferFrames, IPageStorage.Mode storageMode) throws IOException {
+        return new ISAM(indexFile, recordsFile, overflowFile, bufferFrames, storageMode);
+    }
+
+    private ISAM(String indexFile, String recordsFile, String overflowFile, int bufferFrames, IPageStorage.Mode storageMode) throws IOException {
+        this.indexFile = indexFile;
+        this.recordsFile = recordsFile;
+        this.overflowFile = overflowFile;
+        this.bufferFrames = bufferFrames;
+        this.storageMode = storageMode;
+        this.pageSize = PagedFile.readPageSize(indexFile);
+        Path swap = Paths.get(swapFile(indexFile));
+        if (Files.exists(swap)) {
+            finishMoves(swap);
+        }
+        cleanupReorganization();
+        index = new Index(indexFile, pageSize, bufferFrames, storageMode);
+        index.readHeader();
+        records = newTRecords(recordsFile);
+        records.readHeader();
+        records.overflow.readHeader();
+        records.filter.load(filterFile(indexFile), records);
+        records.overflow.loadFreeSlots(freeSlotsFile(overflowFile));
+        int[] pageOrder = index.pageOrder(records.pageAmount);
+        if (pageOrder != null) {
+            records.setKeyOrder(pageOrder);
+        }
+        multiLevelIndex = index.hasLevels();
 
-        operationsStats = new ArrayList<>();
-        operationsStats.add(getStats());
+        operationsStats = new OperationStats(OperationStats.DEFAULT_CAPACITY, getStats());
     }
 
     public TRecord get(int key) throws IOException {
-        TRecord r = _get(key);
-        operationsStats.add(getStats());
-        return r;
+        TRecord r = new TRecord();
+        boolean found = get(key, r);
+        return found ? r : null;
     }
 
-    private TRecord _get(int key) throws IOException {
-        int pageNum = index.lookUpPageFor(key);
-        if (pageNum == -1) {
-            return null;
+    // Allocation free variant of `get()`, found record is copied into `dst`
+    public boolean get(int key, TRecord dst) throws IOException {
+        long start = System.nanoTime();
+        boolean found;
+        structureLock.readLock().lock();
+        try {
+            found = _get(key, dst);
+        } finally {
+            structureLock.readLock().unlock();
+        }
+        recordStats("get", key);
+        recordLatency(Operation.GET, start);
+        return found;
+    }
+
+    private boolean _get(int key, TRecord dst) throws IOException {
+        while (true) {
+            int splits = records.splitCount;
+            int pageNum = index.lookUpPageFor(key);
+            if (pageNum == -1) {
+                return false;
+            }
+            if (records.getRecord(key, pageNum, dst)) {
+                return true;
+            }
+            // Key could have moved to a new page by a split after the index was read
+            if (records.splitCount == splits) {
+                return false;
+            }
         }
-        return records.getRecord(key, pageNum);
     }
 
     public int insert(TRecord record) throws IOException {
-        int r = _insert(record);
-        operationsStats.add(getStats());
+        long start = System.nanoTime();
+        autoReorganize();
+        int r;
+        beginWrite();
+        try {
+            r = _insert(record);
+            logMutation(MutationType.INSERT, record);
+        } finally {
+            endWrite();
+        }
+        recordStats("insert", record.key);
+        recordLatency(Operation.INSERT, start);
         return r;
     }
 
     private int _insert(TRecord record) throws IOException {
-        if (autoReorganization) _reorganize(false);
-
         if (record.key < 0) {
             throw new IllegalArgumentException("Invalid key (negative)");
         }
 
+        if (!insertIfAbsent(record)) {
+            throw new IllegalStateException("Duplicate key");
+        }
+        return 0;
+    }
+
+    // Returns false (and inserts nothing) if there already is a record with the same key
+    private boolean insertIfAbsent(TRecord record) throws IOException {
         if (index.pageAmount == 0) {
             records.insert(record, 0);
             IndexRecord ir = new IndexRecord(record.key, 0);
             index.insert(ir);
             index.smallestKey = ir.key;
 
-            return 0;
+            return true;
         }
 
         if (record.key < index.smallestKey) {
-            records.insert(record, 0);
+            if (!insertBySplit(0, record)) {
+                records.insert(record, 0);
+            }
             index.updateSmallestKey(record.key);
 
-            return 0;
+            return true;
         }
 
-        TRecord r = _get(record.key);
-        if (r != null) {
-            throw new IllegalStateException("Duplicate key");
+        if (_get(record.key, null)) {
+            return false;
         }
         int pageNum = index.getInsertPageFor(record.key);
+        if (insertBySplit(pageNum, record)) {
+            return true;
+        }
         int result = records.insert(record, pageNum);
         if (result == 3) {
             // the key was smaller than the smallest one in records (needs index update)
@@ -93,18 +256,171 @@ public class ISAM {
             index.insert(ir);
         }
 
-        return 0;
+        return true;
+    }
+
+    private boolean insertBySplit(int pageNum, TRecord record) throws IOException {
+        if (splitChainLength <= 0) {
+            return false;
+        }
+        PageSplitter splitter = new PageSplitter(index, records, splitChainLength);
+        return splitter.isApplicable() && splitter.insertBySplit(pageNum, record);
+    }
+
+    public enum InsertOutcome {
+        INSERTED,
+        DUPLICATE
+    }
+
+    // Inserts records in key order in a single pass over the primary pages: the index is looked up and the page
+    // is latched once for all records that go to it (and its overflow chains), duplicates are found on the way.
+    // Outcomes are in the iteration order of `batch`.
+    // Automatic reorganization is checked only before and after the whole batch.
+    public InsertOutcome[] insertBatch(Collection<TRecord> batch) throws IOException {
+        long start = System.nanoTime();
+        autoReorganize();
+        InsertOutcome[] r;
+        beginWrite();
+        try {
+            r = _insertBatch(batch);
+        } finally {
+            endWrite();
+        }
+        autoReorganize();
+        recordStats("insert batch", batch.size());
+        recordLatency(Operation.INSERT_BATCH, start);
+        return r;
+    }
+
+    private InsertOutcome[] _insertBatch(Collection<TRecord> batch) throws IOException {
+        TRecord[] input = batch.toArray(new TRecord[0]);
+        // Key in upper half and input position in lower half, so equal keys keep their order
+        long[] order = new long[input.length];
+        for (int i = 0; i < input.length; i++) {
+            if (input[i].key < 0) {
+                throw new IllegalArgumentException("Invalid key (negative)");
+            }
+            order[i] = ((long) input[i].key << 32) | i;
+        }
+        Arrays.sort(order);
+
+        InsertOutcome[] outcomes = new InsertOutcome[input.length];
+        int[] upper = new int[1];
+        int next = 0;
+        while (next < order.length) {
+            int o = (int) order[next];
+            TRecord record = input[o];
+            // First record and keys smaller than every other change the index first, they go one by one
+            if (index.pageAmount == 0 || record.key < index.smallestKey) {
+                if (insertIfAbsent(record)) {
+                    outcomes[o] = InsertOutcome.INSERTED;
+                    logMutation(MutationType.INSERT, record);
+                } else {
+                    outcomes[o] = InsertOutcome.DUPLICATE;
+                }
+                next++;
+                continue;
+            }
+
+            // Index is looked up once for all records of a page, which is latched once for them
+            int pageNum = Math.max(index.lookUpPageFor(record.key, upper), 0);
+            int result = 0;
+            boolean split = false;
+            TRecordPage trp = records.latchForWrite(pageNum);
+            try {
+                do {
+                    o = (int) order[next++];
+                    record = input[o];
+                    if (records.contains(trp, record.key)) {
+                        outcomes[o] = InsertOutcome.DUPLICATE;
+                        continue;
+                    }
+                    split = insertBySplit(pageNum, record);
+                    if (!split) {
+                        result = records.insert(trp, record);
+                    }
+                    outcomes[o] = InsertOutcome.INSERTED;
+                    logMutation(MutationType.INSERT, record);
+                    // Split, new first key or new page changes the index, the rest is looked up again
+                } while (!split && result != 3 && result != 4 && next < order.length && input[(int) order[next]].key < upper[0]);
+            } finally {
+                records.release(trp);
+            }
+            if (result == 3) {
+                index.updateSmallestKey(record.key);
+            }
+            if (result == 4) {
+                index.insert(new IndexRecord(record.key, records.pageAmount - 1));
+            }
+        }
+        return outcomes;
+    }
+
+    // Loads records sorted by key into empty ISAM, pages are written one after another as by reorganization.
+    // Returns amount of loaded records.
+    public int bulkLoad(Iterator<TRecord> sorted) throws IOException {
+        long start = System.nanoTime();
+        int r;
+        structureLock.writeLock().lock();
+        try {
+            r = _bulkLoad(sorted);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+        recordStats("bulk load", r);
+        recordLatency(Operation.BULK_LOAD, start);
+        return r;
+    }
+
+    // Variant for unsorted input, it is sorted externally in runs of `runSize` records first
+    public int bulkLoadUnsorted(Iterator<TRecord> unsorted, int runSize) throws IOException {
+        return bulkLoad(TRecordSorter.sort(unsorted, runSize));
+    }
+
+    private int _bulkLoad(Iterator<TRecord> sorted) throws IOException {
+        if (index.pageAmount != 0 || records.pageAmount != 0) {
+            throw new IllegalStateException("Bulk load needs empty database");
+        }
+
+        SequentialLoader loader = new SequentialLoader(index, records, overflowThreshold);
+        int prevKey = -1;
+        while (sorted.hasNext()) {
+            TRecord record = sorted.next();
+            if (record.key < 0) {
+                throw new IllegalArgumentException("Invalid key (negative)");
+            }
+            if (record.key <= prevKey) {
+                throw new IllegalArgumentException("Bulk load input is not sorted by key (" + record.key + " after " + prevKey + ")");
+            }
+            loader.append(record);
+            prevKey = record.key;
+        }
+
+        if (multiLevelIndex) {
+            index.buildLevels();
+        }
+        return loader.loaded;
     }
 
     public int update(TRecord record) throws IOException {
-        int r = _update(record);
-        operationsStats.add(getStats());
+        long start = System.nanoTime();
+        autoReorganize();
+        int r;
+        beginWrite();
+        try {
+            r = _update(record);
+            if (r == 0) {
+                logMutation(MutationType.UPDATE, record);
+            }
+        } finally {
+            endWrite();
+        }
+        recordStats("update", record.key);
+        recordLatency(Operation.UPDATE, start);
         return r;
     }
 
     private int _update(TRecord record) throws IOException {
-        if (autoReorganization) reorganize(false);
-
         int pageNum = index.lookUpPageFor(record.key);
         if (pageNum == -1) {
             return -1;
@@ -114,14 +430,24 @@ public class ISAM {
     }
 
     public int delete(int key) throws IOException {
-        int r = _delete(key);
-        operationsStats.add(getStats());
+        long start = System.nanoTime();
+        autoReorganize();
+        int r;
+        beginWrite();
+        try {
+            r = _delete(key);
+            if (r == 0) {
+                logMutation(MutationType.DELETE, new TRecord(key, -1, -1, -1));
+            }
+        } finally {
+            endWrite();
+        }
+        recordStats("delete", key);
+        recordLatency(Operation.DELETE, start);
         return r;
     }
 
     private int _delete(int key) throws IOException {
-        if (autoReorganization) _reorganize(false);
-
         int pageNum = index.lookUpPageFor(key);
         if (pageNum == -1) {
             return -1;
@@ -131,7 +457,7 @@ public class ISAM {
     }
 
     public int insertedRecordAmount() {
-        return records.fileInsertedAmount + records.overflow.fileInsertedAmount;
+        return records.fileInsertedAmount + records.overflow.attachedAmount();
     }
 
     public int deletedRecordAmount() {
@@ -139,126 +465,543 @@ public class ISAM {
     }
 
     public int reorganize(boolean forced) throws IOException {
-        int r = _reorganize(forced);
-        operationsStats.add(getStats());
+        long start = System.nanoTime();
+        int r;
+        structureLock.writeLock().lock();
+        try {
+            r = forced || !localReorganization ? _reorganize(forced) : _reorganizeLocal();
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+        recordStats(forced ? "reorganize f" : "reorganize", -1);
+        if (r != -1) {
+            recordLatency(Operation.REORGANIZATION, start);
+        }
         return r;
     }
 
+    // Read lock cannot be upgraded, so reorganization is checked before the operation takes its locks
+    private void autoReorganize() throws IOException {
+        if (!autoReorganization) {
+            return;
+        }
+        if (backgroundReorganization) {
+            startBackgroundReorganization();
+            return;
+        }
+        long start = System.nanoTime();
+        int r;
+        structureLock.writeLock().lock();
+        try {
+            r = localReorganization ? _reorganizeLocal() : _reorganize(false);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+        if (r != -1) {
+            recordLatency(Operation.REORGANIZATION, start);
+        }
+    }
+
+    private void recordLatency(Operation operation, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        latency(operation).record(nanos);
+        if (operation == Operation.REORGANIZATION) {
+            lastReorganizationNanos = nanos;
+        }
+    }
+
+    // Wall time of the last reorganization that rebuilt something, -1 if there was none
+    public long lastReorganizationNanos() {
+        return lastReorganizationNanos;
+    }
+
+    // Publishes health and I/O counters of this instance over JMX (see `ISAMMonitor`), named after the index file
+    public synchronized ObjectName registerMonitor() throws JMException {
+        if (monitorName == null) {
+            ObjectName name = new ObjectName("isam:type=ISAM,name=" + ObjectName.quote(indexFile));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ISAMMonitor(this), name);
+            monitorName = name;
+        }
+        return monitorName;
+    }
+
+    public synchronized void unregisterMonitor() throws JMException {
+        if (monitorName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(monitorName);
+            monitorName = null;
+        }
+    }
+
+    public LatencyHistogram latency(Operation operation) {
+        return latencies.get(operation);
+    }
+
+    // Filled once, so threads only read the map
+    private static EnumMap<Operation, LatencyHistogram> newLatencies() {
+        EnumMap<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+        }
+        return latencies;
+    }
+
+    private void beginWrite() {
+        structureLock.readLock().lock();
+        writerLock.lock();
+    }
+
+    private void endWrite() {
+        writerLock.unlock();
+        structureLock.readLock().unlock();
+    }
+
+    // Operations of concurrent threads are recorded in completion order without a lock (see `OperationStats`),
+    // `argument` (key or amount) is left out if negative
+    private void recordStats(String kind, long argument) {
+        if (!recordOperationStats) {
+            return;
+        }
+        operationsStats.record(kind, argument, getStats());
+    }
+
     private int _reorganize(boolean forced) throws IOException {
         if (!forced && !needsReorganization()) {
             return -1;
         }
 
         IOStats reorganizeBeforeStats = getStats();
+        IsamEvents.Reorganization event = new IsamEvents.Reorganization();
+        event.begin();
+        // Nobody walks chains under the exclusive lock, so records of detached ones can be marked as deleted
+        records.overflow.freeDetached();
+        int overflowBefore = records.overflow.attachedAmount();
+
+        Index newIndex = new Index(tempFile(indexFile), pageSize, bufferFrames, storageMode);
+        TRecords newTRecords = newTRecords(tempFile(recordsFile)); // TODO: overflowFile?
+
+        SequentialLoader loader = new SequentialLoader(newIndex, newTRecords, overflowThreshold);
+        // Both read primary pages in storage order, which is the key order until a page is split
+        boolean merge = records.overflow.detachedAmount == 0 && records.isInPageOrder();
+        String kind = !merge ? "chains" : reorganizationThreads > 1 ? "parallel" : "merged";
+        if (merge && reorganizationThreads > 1) {
+            new ParallelReorganizer(records, newIndex, newTRecords, overflowThreshold, reorganizationThreads, reorganizationRunSize).run();
+        } else if (merge) {
+            appendMerged(loader);
+        } else {
+            // Detached overflow records not freed yet (their slots are not known after reopening the file)
+            // cannot be told apart from attached ones without following the chains
+            appendByChains(loader);
+        }
 
-        Index newIndex = new Index(tempIndexFile, pageSize);
-        TRecords newTRecords = new TRecords(tempRecordFile, overflowFile, pageSize); // TODO: overflowFile?
+        if (multiLevelIndex) {
+            newIndex.buildLevels();
+        }
+        newIndex.writeCachedPages();
+        newTRecords.writeCachedPages();
+
+        IOStats afterReorganization = getStats();
+
+//        newIndex.print();
+//        newTRecords.print();
+
+        // Overflow file is not replaced, the new records opened it again
+        Index oldIndex = index;
+        TRecords oldRecords = records;
+        index = newIndex;
+        records = newTRecords;
+        index.filename = this.indexFile;
+        records.filename = this.recordsFile;
+        addStats(afterReorganization);
+        try {
+            Files.deleteIfExists(Paths.get(filterFile(indexFile)));
+            Files.deleteIfExists(Paths.get(freeSlotsFile(overflowFile)));
+            replaceFiles(new String[]{tempFile(indexFile), tempFile(recordsFile)}, new String[]{indexFile, recordsFile});
+        } finally {
+            oldIndex.close();
+            oldRecords.close();
+        }
+        if (event.shouldCommit()) {
+            event.kind = kind;
+            event.records = insertedRecordAmount();
+            event.primaryPages = records.pageAmount;
+            event.overflowRecords = overflowBefore;
+            event.commit();
+        }
+        return 0;
+    }
 
+    // Follows overflow chains of every primary record, a random overflow page access per chained record
+    private void appendByChains(SequentialLoader loader) throws IOException {
         TRecord.NextRecordPos rememberedPos = new TRecord.NextRecordPos();
 
-        int magic_number = (int) (pageSize * overflowThreshold);
-        int insertPageNum = 0;
-        int newInserted = 0;
-        for (int pi = 0; pi < records.pageAmount; pi++) {
-            TRecordPage p = records.getPage(pi);
-            for (int ri = 0; ri < p.recordAmount; ri++) {
-                TRecord r = p.getRecordFromPos(ri);
-                if (r.deleted) {
-                    continue;
+        for (int pi = records.pageAmount == 0 ? -1 : 0; pi != -1; pi = records.nextInKeyOrder(pi)) {
+            TRecordPage p = records.getPinnedPage(pi);
+            try {
+                for (int ri = 0; ri < p.recordAmount; ri++) {
+                    TRecord r = p.getRecordFromPos(ri);
+                    // Chain of a deleted record still holds live records
+                    rememberedPos.pagePos = r.next.pagePos;
+                    rememberedPos.pageNum = r.next.pageNum;
+                    if (!r.deleted) {
+                        loader.append(r);
+                    }
+
+                    while (rememberedPos.exists()) {
+                        r = records.overflow.getRecordFromOverflow(rememberedPos);
+                        rememberedPos.pagePos = r.next.pagePos;
+                        rememberedPos.pageNum = r.next.pageNum;
+                        if (r.deleted) {
+                            continue;
+                        }
+                        loader.append(r);
+                    }
                 }
+            } finally {
+                records.unpin(p);
+            }
+        }
+    }
 
-                rememberedPos.pagePos = r.next.pagePos;
-                rememberedPos.pageNum = r.next.pageNum;
-                r.next.reset();
+    // Reads both files sequentially once. Live overflow records are sorted by key (in runs on disk if there are
+    // more than `reorganizationRunSize`) and merged with primary records, so no chain is followed.
+    private void appendMerged(SequentialLoader loader) throws IOException {
+        Iterator<TRecord> primary = new SequentialReader(records);
+        Iterator<TRecord> chained = TRecordSorter.sort(new SequentialReader(records.overflow), reorganizationRunSize);
+        TRecord nextChained = chained.hasNext() ? chained.next() : null;
+        while (primary.hasNext()) {
+            TRecord r = primary.next();
+            while (nextChained != null && nextChained.key < r.key) {
+                loader.append(nextChained);
+                nextChained = chained.hasNext() ? chained.next() : null;
+            }
+            loader.append(r);
+        }
+        while (nextChained != null) {
+            loader.append(nextChained);
+            nextChained = chained.hasNext() ? chained.next() : null;
+        }
+    }
 
-//                insertPageNum = newInserted / pageSize;
-                if (newInserted != 0 && newInserted % magic_number == 0) {
-                    insertPageNum++;
-                }
+    // Rebuilds spans of primary pages until thresholds are met, so I/O depends on the damage and not on the file size.
+    // Falls back to full reorganization when damage is spread over too many pages (or not tracked, after `open()`).
+    // Returns 1 if it did so, otherwise the same as `_reorganize()`.
+    private int _reorganizeLocal() throws IOException {
+        if (!needsReorganization()) {
+            return -1;
+        }
 
-                int result = newTRecords.insert(r, insertPageNum);
-                if (result != 0 && result != 3) {
-                    throw new IllegalStateException("Insertion required additional calls.");
-                }
+        IsamEvents.Reorganization event = new IsamEvents.Reorganization();
+        event.begin();
+        int overflowBefore = records.overflow.attachedAmount();
+        LocalReorganizer reorganizer = new LocalReorganizer(index, records, (1 + overflowThreshold) / 2);
+        while (needsReorganization()) {
+            int worst = records.mostDamagedPage();
+            if (worst == -1 || !reorganizer.isApplicable() || reorganizer.rebuiltPages > records.pageAmount / 2
+                || !reorganizer.rebuildAround(worst)) {
+                _reorganize(true);
+                return 1;
+            }
+        }
+        // Rebuilt pages detached their chains, nobody walks them under the exclusive lock
+        records.overflow.freeDetached();
+        if (event.shouldCommit()) {
+            event.kind = "local";
+            event.records = reorganizer.movedRecords;
+            event.primaryPages = reorganizer.rebuiltPages;
+            event.overflowRecords = overflowBefore;
+            event.commit();
+        }
+        return 0;
+    }
 
-                if (newInserted != 0 && newInserted % magic_number == 0) {
-                    IndexRecord ir = new IndexRecord(r.key, insertPageNum);
-                    newIndex.insert(ir);
-                }
+    // Counters of replaced files are carried over, so stats keep counting from where they were
+    private void addStats(IOStats stats) {
+        index.pageReadCount += stats.indexReads;
+        index.pageWriteCount += stats.indexWrites;
+        records.pageReadCount += stats.recordsReads;
+        records.pageWriteCount += stats.recordsWrites;
+        records.overflow.pageReadCount += stats.overflowReads;
+        records.overflow.pageWriteCount += stats.overflowWrites;
+        index.cacheHitCount += stats.indexHits;
+        index.cacheMissCount += stats.indexMisses;
+        records.cacheHitCount += stats.recordsHits;
+        records.cacheMissCount += stats.recordsMisses;
+        records.overflow.cacheHitCount += stats.overflowHits;
+        records.overflow.cacheMissCount += stats.overflowMisses;
+        records.filter.skippedWalks.addAndGet(stats.filterSkips);
+        records.filter.falsePositives.addAndGet(stats.filterFalsePositives);
+        records.overflow.chainWalks.addAndGet(stats.chainWalks);
+        records.overflow.walkedRecords.addAndGet(stats.walkedRecords);
+    }
 
-                newInserted++;
+    // Called by writers holding `writerLock`
+    private void logMutation(MutationType type, TRecord record) {
+        if (reorganizationLog != null) {
+            reorganizationLog.add(new LoggedMutation(type, record));
+        }
+    }
 
-                while (rememberedPos.exists()) {
-                    r = records.overflow.getRecordFromOverflow(rememberedPos);
-                    rememberedPos.pagePos = r.next.pagePos;
-                    rememberedPos.pageNum = r.next.pageNum;
-                    if (r.deleted) {
-                        continue;
-                    }
+    private synchronized void startBackgroundReorganization() {
+        if (reorganizationThread != null && reorganizationThread.isAlive()) {
+            return;
+        }
+        if (!needsReorganization()) {
+            return;
+        }
+        reorganizationThread = new Thread(this::reorganizeInBackground, "isam-reorganization");
+        reorganizationThread.setDaemon(true);
+        reorganizationThread.start();
+    }
 
-                    r.next.reset();
+    // Waits for background reorganization started by an earlier operation, its failure is rethrown
+    public void awaitReorganization() throws IOException {
+        Thread t;
+        synchronized (this) {
+            t = reorganizationThread;
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for reorganization");
+            }
+        }
+        IOException failure = reorganizationFailure;
+        if (failure != null) {
+            reorganizationFailure = null;
+            throw failure;
+        }
+    }
 
-//                insertPageNum = newInserted / pageSize;
-                    if (newInserted != 0 && newInserted % magic_number == 0) {
-                        insertPageNum++;
-                    }
+    // Copies live records into new files while readers and writers keep going. The copy is not a snapshot,
+    // so every mutation done since the copy started is logged and replayed on it (replay is idempotent).
+    // Only the last part of the log is replayed under the exclusive lock, right before the files are swapped.
+    private void reorganizeInBackground() {
+        long start = System.nanoTime();
+        IsamEvents.Reorganization event = new IsamEvents.Reorganization();
+        event.begin();
+        ISAM copy = null;
+        boolean swapped = false;
+        try {
+            TRecords source;
+            int overflowBefore;
+            structureLock.readLock().lock();
+            try {
+                writerLock.lock();
+                try {
+                    source = records;
+                    overflowBefore = records.overflow.attachedAmount();
+                    reorganizationLog = new ArrayList<>();
+                } finally {
+                    writerLock.unlock();
+                }
+            } finally {
+                structureLock.readLock().unlock();
+            }
+            copy = new ISAM(copyFile(indexFile), copyFile(recordsFile), copyFile(overflowFile), pageSize, bufferFrames, storageMode);
+            copy.recordOperationStats = false;
+            copy.multiLevelIndex = multiLevelIndex;
+            copy.overflowThreshold = overflowThreshold;
+            copy.setOverflowClusterPages(overflowClusterPages);
+            if (!copyInChunks(source, copy)) {
+                return;
+            }
 
-                    result = newTRecords.insert(r, insertPageNum);
-                    if (result != 0 && result != 3) {
-                        throw new IllegalStateException("Insertion required additional calls.");
-                    }
+            ArrayList<LoggedMutation> pending = takeLog();
+            while (pending.size() > REPLAY_UNDER_LOCK) {
+                replay(copy, pending);
+                pending = takeLog();
+            }
 
-                    if (newInserted != 0 && newInserted % magic_number == 0) {
-                        IndexRecord ir = new IndexRecord(r.key, insertPageNum);
-                        newIndex.insert(ir);
+            structureLock.writeLock().lock();
+            try {
+                // Files could have been replaced by forced reorganization or cleanup meanwhile
+                if (records == source) {
+                    replay(copy, pending);
+                    replay(copy, takeLog());
+                    swapIn(copy);
+                    swapped = true;
+                    recordLatency(Operation.REORGANIZATION, start);
+                    if (event.shouldCommit()) {
+                        event.kind = "background";
+                        event.records = insertedRecordAmount();
+                        event.primaryPages = records.pageAmount;
+                        event.overflowRecords = overflowBefore;
+                        event.commit();
+                    }
+                }
+            } finally {
+                structureLock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            reorganizationFailure = e;
+        } catch (RuntimeException e) {
+            reorganizationFailure = new IOException("Background reorganization failed", e);
+        } finally {
+            writerLock.lock();
+            reorganizationLog = null;
+            writerLock.unlock();
+            if (!swapped) {
+                if (copy != null) {
+                    try {
+                        copy.closeFiles();
+                    } catch (IOException e) {
+                        // Files are deleted anyway
                     }
-                    newInserted++;
                 }
+                new File(copyFile(indexFile)).delete();
+                new File(copyFile(recordsFile)).delete();
+                new File(copyFile(overflowFile)).delete();
+                new File(filterFile(copyFile(indexFile))).delete();
+                new File(freeSlotsFile(copyFile(overflowFile))).delete();
             }
         }
+    }
 
-        IOStats afterReorganization = getStats();
-
-//        newIndex.print();
-//        newTRecords.print();
+    // Loads live records of `source` into the empty `copy` in key order, a chunk per hold of the shared lock.
+    // Mutations between the chunks are in the log. Returns false if the files were replaced meanwhile.
+    private boolean copyInChunks(TRecords source, ISAM copy) throws IOException {
+        SequentialLoader loader = new SequentialLoader(copy.index, copy.records, copy.overflowThreshold);
+        long fromKey = 0;
+        while (fromKey <= Integer.MAX_VALUE) {
+            structureLock.readLock().lock();
+            try {
+                if (records != source) {
+                    return false;
+                }
+                ScanCursor cursor = scan((int) fromKey, Integer.MAX_VALUE);
+                int copied = 0;
+                while (copied < COPY_CHUNK && cursor.hasNext()) {
+                    TRecord r = cursor.next();
+                    loader.append(r);
+                    fromKey = r.key + 1L;
+                    copied++;
+                }
+                if (!cursor.hasNext()) {
+                    break;
+                }
+            } finally {
+                structureLock.readLock().unlock();
+            }
+        }
+        if (copy.multiLevelIndex) {
+            copy.index.buildLevels();
+        }
+        return true;
+    }
 
-        File f = new File(this.indexFile);
-        f.delete();
-        f = new File(this.recordsFile);
-        f.delete();
-        f = new File(this.overflowFile);
-        f.delete();
+    private ArrayList<LoggedMutation> takeLog() {
+        writerLock.lock();
+        try {
+            ArrayList<LoggedMutation> log = reorganizationLog;
+            reorganizationLog = new ArrayList<>();
+            return log;
+        } finally {
+            writerLock.unlock();
+        }
+    }
 
-        f = new File(this.tempIndexFile);
-        f.renameTo(new File(this.indexFile));
-        f = new File(this.tempRecordFile);
-        f.renameTo(new File(this.recordsFile));
+    // Copy may or may not contain a logged mutation already, so inserts of present keys become updates
+    private static void replay(ISAM copy, ArrayList<LoggedMutation> log) throws IOException {
+        for (LoggedMutation m : log) {
+            boolean present = copy.get(m.record.key, null);
+            switch (m.type) {
+                case INSERT -> {
+                    if (present) {
+                        copy.update(m.record);
+                    } else {
+                        copy.insert(m.record);
+                    }
+                }
+                case UPDATE -> {
+                    if (present) {
+                        copy.update(m.record);
+                    }
+                }
+                case DELETE -> {
+                    if (present) {
+                        copy.delete(m.record.key);
+                    }
+                }
+            }
+        }
+    }
 
-        index = newIndex;
-        records = newTRecords;
+    private void swapIn(ISAM copy) throws IOException {
+        copy.flush();
+        IOStats before = getStats();
 
+        Index oldIndex = index;
+        TRecords oldRecords = records;
+        index = copy.index;
+        records = copy.records;
         index.filename = this.indexFile;
         records.filename = this.recordsFile;
-        index.pageReadCount += afterReorganization.indexReads;
-        index.pageWriteCount += afterReorganization.indexWrites;
-        records.pageReadCount += afterReorganization.recordsReads;
-        records.pageWriteCount += afterReorganization.recordsWrites;
-        records.overflow.pageReadCount += afterReorganization.overflowReads;
-        records.overflow.pageWriteCount += afterReorganization.overflowWrites;
-        return 0;
+        records.overflow.filename = this.overflowFile;
+        addStats(before);
+        try {
+            // Saved filters and free slots describe the replaced files, the next flush saves them again
+            Files.deleteIfExists(Paths.get(filterFile(indexFile)));
+            Files.deleteIfExists(Paths.get(filterFile(copyFile(indexFile))));
+            Files.deleteIfExists(Paths.get(freeSlotsFile(overflowFile)));
+            Files.deleteIfExists(Paths.get(freeSlotsFile(copyFile(overflowFile))));
+            replaceFiles(new String[]{copyFile(indexFile), copyFile(recordsFile), copyFile(overflowFile)},
+                new String[]{indexFile, recordsFile, overflowFile});
+        } finally {
+            oldIndex.close();
+            oldRecords.close();
+        }
+    }
+
+    // Moves every `from` file over its `to` file. Each move is atomic, and the whole list is saved in a swap file
+    // first, so `open()` finishes the moves after a crash instead of mixing files of both generations.
+    // Open storages follow their moved files, so instances already using the new files stay valid.
+    private void replaceFiles(String[] from, String[] to) throws IOException {
+        StringBuilder moves = new StringBuilder();
+        for (int i = 0; i < from.length; i++) {
+            moves.append(from[i]).append('\n').append(to[i]).append('\n');
+        }
+        Path swap = Paths.get(swapFile(indexFile));
+        Path written = Paths.get(swapFile(indexFile) + ".tmp");
+        Files.writeString(written, moves);
+        Files.move(written, swap, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        finishMoves(swap);
+    }
+
+    // Moves already done before a crash are skipped, their `from` file is gone
+    private static void finishMoves(Path swap) throws IOException {
+        List<String> lines = Files.readAllLines(swap);
+        for (int i = 0; i + 1 < lines.size(); i += 2) {
+            Path from = Paths.get(lines.get(i));
+            if (Files.exists(from)) {
+                Files.move(from, Paths.get(lines.get(i + 1)), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.delete(swap);
     }
 
     public int randomInsert(int amount, RandomPool rp, int[] insertedKeys) {
         int i = 0;
         while (i < amount && !rp.isEmpty()) {
             int value = rp.next();
+            long start = System.nanoTime();
             try {
-                _insert(new TRecord(value, value, value, value));
+                autoReorganize();
+                beginWrite();
+                try {
+                    TRecord record = new TRecord(value, value, value, value);
+                    _insert(record);
+                    logMutation(MutationType.INSERT, record);
+                } finally {
+                    endWrite();
+                }
                 insertedKeys[i++] = value;
+                recordLatency(Operation.INSERT, start);
             } catch (Exception ignored) {
             }
         }
-        operationsStats.add(getStats());
+        recordStats("random insert", i);
         return i;
     }
 
@@ -266,13 +1009,26 @@ public class ISAM {
         int i = 0;
         while (i < amount && !rp.isEmpty()) {
             int value = rp.next();
+            long start = System.nanoTime();
             try {
-                if (_delete(value) == -1) continue;
+                autoReorganize();
+                int r;
+                beginWrite();
+                try {
+                    r = _delete(value);
+                    if (r == 0) {
+                        logMutation(MutationType.DELETE, new TRecord(value, -1, -1, -1));
+                    }
+                } finally {
+                    endWrite();
+                }
+                if (r == -1) continue;
                 deletedKeys[i++] = value;
+                recordLatency(Operation.DELETE, start);
             } catch (Exception ignored) {
             }
         }
-        operationsStats.add(getStats());
+        recordStats("random delete", i);
         return i;
     }
 
@@ -286,10 +1042,10 @@ public class ISAM {
 
 
     public double currentOverflowRatio() {
-        if (records.overflow.fileInsertedAmount == 0) {
+        if (records.overflow.attachedAmount() == 0) {
             return 0;
         }
-        return (double) records.overflow.fileInsertedAmount / insertedRecordAmount();
+        return (double) records.overflow.attachedAmount() / insertedRecordAmount();
     }
 
     public boolean deletionReachedThreshold() {
@@ -303,12 +1059,29 @@ public class ISAM {
         return (double) deletedRecordAmount() / insertedRecordAmount();
     }
 
-    public void exportStatsToCSV(String outputFilename, ArrayList<String> executedCommands) throws IOException {
-        if (executedCommands.isEmpty()) {
-            System.out.println("No commands executed. Skipping CSV export.");
+    // Writes I/O of the operations still kept (the last `OperationStats.DEFAULT_CAPACITY`) to a file in `results/`
+    public void exportStatsToCSV(String outputFilename) throws IOException {
+        if (operationsStats.recordedAmount() == 0) {
+            System.out.println("No operations recorded. Skipping CSV export.");
             return;
         }
+        String filename = resultsFile(outputFilename);
+        operationsStats.exportCSV(filename);
+        System.out.println("CSV exported to: " + filename);
+    }
+
+    // Every following operation is written to a file in `results/` as it completes, until `stopStatsStream()`
+    public void streamStatsToCSV(String outputFilename) throws IOException {
+        String filename = resultsFile(outputFilename);
+        operationsStats.startStream(filename);
+        System.out.println("Streaming operation stats to: " + filename);
+    }
+
+    public void stopStatsStream() throws IOException {
+        operationsStats.stopStream();
+    }
 
+    private String resultsFile(String outputFilename) {
         File resultsDir = new File("results");
         if (!resultsDir.exists()) {
             resultsDir.mkdirs();
@@ -326,78 +1099,125 @@ public class ISAM {
             name = "run";
         }
 
-        String filename = String.format("results/%s_%s_%d_%.1f_%.1f.csv", timestamp, name, pageSize,
+        return String.format("results/%s_%s_%d_%.1f_%.1f.csv", timestamp, name, pageSize,
             overflowThreshold, deletionThreshold);
+    }
+
+    // Writes modified pages and file headers, so the files can be opened again with `open()`
+    public void flush() throws IOException {
+        structureLock.writeLock().lock();
+        try {
+            // Detached slots are not saved, they are freed first
+            records.overflow.freeDetached();
+            index.writeCachedPages();
+            records.writeCachedPages();
+            records.overflow.writeCachedPages();
+            records.filter.save(filterFile(indexFile), records);
+            records.overflow.saveFreeSlots(freeSlotsFile(overflowFile));
+            operationsStats.flushStream();
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
 
-        try (java.io.FileWriter writer = new java.io.FileWriter(filename)) {
-            writer.write(
-                "Operation," +
-                    "Index Reads,Index Writes," +
-                    "Records Reads,Records Writes," +
-                    "Overflow Reads,Overflow Writes," +
-                    "Total Reads,Total Writes," +
-                    "Accumulative Reads,Accumulative Writes\n"
-            );
-
-            int cumulativeTotalReads = 0;
-            int cumulativeTotalWrites = 0;
-
-            for (int i = 0; i < executedCommands.size(); i++) {
-                String command = executedCommands.get(i);
-                IOStats delta = operationsStats.get(i + 1).minus(operationsStats.get(i));
-
-                cumulativeTotalReads += delta.totalReads();
-                cumulativeTotalWrites += delta.totalWrites();
-
-                writer.write(String.format(
-                    "%s," +
-                        "%d,%d," +
-                        "%d,%d," +
-                        "%d,%d," +
-                        "%d,%d," +
-                        "%d,%d\n",
-                    command,
-                    delta.indexReads, delta.indexWrites,
-                    delta.recordsReads, delta.recordsWrites,
-                    delta.overflowReads, delta.overflowWrites,
-                    delta.totalReads(), delta.totalWrites(),
-                    cumulativeTotalReads, cumulativeTotalWrites
-                ));
+    public void cleanupFull() throws IOException {
+        structureLock.writeLock().lock();
+        try {
+            File f = new File(this.indexFile);
+            f.delete();
+            f = new File(this.recordsFile);
+            f.delete();
+            f = new File(this.overflowFile);
+            f.delete();
+            f = new File(filterFile(this.indexFile));
+            f.delete();
+            f = new File(freeSlotsFile(this.overflowFile));
+            f.delete();
+            f = new File(swapFile(this.indexFile));
+            f.delete();
+            cleanupReorganization();
+
+            if (index != null) {
+                closeFiles();
+            }
+            index = new Index(indexFile, pageSize, bufferFrames, storageMode);
+            records = newTRecords(recordsFile);
+            if (operationsStats != null) {
+                operationsStats.clear(getStats());
             }
+        } finally {
+            structureLock.writeLock().unlock();
         }
+    }
 
-        System.out.println("CSV exported to: " + filename);
+    // Waits for background reorganization and flushes, the instance cannot be used afterwards
+    public void close() throws IOException {
+        awaitReorganization();
+        flush();
+        operationsStats.stopStream();
+        structureLock.writeLock().lock();
+        try {
+            closeFiles();
+        } finally {
+            structureLock.writeLock().unlock();
+        }
     }
 
-    // TODO: REMOVE (DEBUG)
-    public void flush() throws IOException {
-        index.writeCachedPage();
-        records.writeCachedPage();
-        records.overflow.writeCachedPage();
+    private void closeFiles() throws IOException {
+        index.close();
+        records.close();
     }
 
-    public void cleanupFull() throws IOException {
-        File f = new File(this.indexFile);
+    // Swap file is left alone, `open()` finishes its moves before this is called
+    public void cleanupReorganization() {
+        File f = new File(tempFile(this.indexFile));
         f.delete();
-        f = new File(this.recordsFile);
+        f = new File(tempFile(this.recordsFile));
         f.delete();
-        f = new File(this.overflowFile);
+        f = new File(copyFile(this.indexFile));
         f.delete();
-        cleanupReorganization();
+        f = new File(copyFile(this.recordsFile));
+        f.delete();
+        f = new File(copyFile(this.overflowFile));
+        f.delete();
+        f = new File(filterFile(copyFile(this.indexFile)));
+        f.delete();
+        f = new File(freeSlotsFile(copyFile(this.overflowFile)));
+        f.delete();
+        f = new File(swapFile(this.indexFile) + ".tmp");
+        f.delete();
+    }
 
-        index = new Index(indexFile, pageSize);
-        records = new TRecords(recordsFile, overflowFile, pageSize);
-        if (operationsStats != null) {
-            operationsStats.clear();
-            operationsStats.add(getStats());
-        }
+    private TRecords newTRecords(String filename) throws IOException {
+        TRecords r = new TRecords(filename, overflowFile, pageSize, bufferFrames, storageMode);
+        r.overflow.clusterPages = overflowClusterPages;
+        return r;
     }
 
-    public void cleanupReorganization() {
-        File f = new File(this.tempIndexFile);
-        f.delete();
-        f = new File(this.tempRecordFile);
-        f.delete();
+    // Overflow filters are saved next to the index they were flushed with
+    private static String filterFile(String indexFile) {
+        return indexFile + ".bloom";
+    }
+
+    // Free overflow slots are saved next to the overflow file
+    private static String freeSlotsFile(String overflowFile) {
+        return overflowFile + ".free";
+    }
+
+    // Files built by reorganization are named after the ones they replace, so instances in one directory
+    // never share them
+    private static String tempFile(String file) {
+        return file + ".reorg";
+    }
+
+    // Background reorganization builds a whole copy, so it does not share files with the inline one
+    private static String copyFile(String file) {
+        return file + ".copy";
+    }
+
+    // Moves of a file swap not finished yet, see `replaceFiles()`
+    private static String swapFile(String indexFile) {
+        return indexFile + ".swap";
     }
 
     public void print() throws IOException {
@@ -414,6 +1234,16 @@ public class ISAM {
         int recordsWrites;
         int overflowReads;
         int overflowWrites;
+        int indexHits;
+        int indexMisses;
+        int recordsHits;
+        int recordsMisses;
+        int overflowHits;
+        int overflowMisses;
+        int filterSkips;
+        int filterFalsePositives;
+        int chainWalks;
+        int walkedRecords;
 
         public int totalReads() {
             return indexReads + recordsReads + overflowReads;
@@ -423,6 +1253,37 @@ public class ISAM {
             return indexWrites + recordsWrites + overflowWrites;
         }
 
+        public int totalHits() {
+            return indexHits + recordsHits + overflowHits;
+        }
+
+        public int totalMisses() {
+            return indexMisses + recordsMisses + overflowMisses;
+        }
+
+        // Share of walked chains that did not hold the key, out of lookups of keys missing in the chains
+        public double filterFalsePositiveRate() {
+            if (filterSkips + filterFalsePositives == 0) {
+                return 0;
+            }
+            return (double) filterFalsePositives / (filterSkips + filterFalsePositives);
+        }
+
+        // Chain records read per lookup that walked a chain
+        public double averageChainWalk() {
+            if (chainWalks == 0) {
+                return 0;
+            }
+            return (double) walkedRecords / chainWalks;
+        }
+
+        public double hitRatio() {
+            if (totalHits() + totalMisses() == 0) {
+                return 0;
+            }
+            return (double) totalHits() / (totalHits() + totalMisses());
+        }
+
         public void print() {
             System.out.println("IO stats:");
             System.out.println("- Index reads:      " + this.indexReads);
@@ -433,6 +1294,22 @@ public class ISAM {
             System.out.println("- Overflow writes:  " + this.overflowWrites);
             System.out.println("== Total reads:     " + this.totalReads());
             System.out.println("== Total writes:    " + this.totalWrites());
+            System.out.println("Cache stats:");
+            System.out.println("- Index hits:       " + this.indexHits);
+            System.out.println("- Index misses:     " + this.indexMisses);
+            System.out.println("- Records hits:     " + this.recordsHits);
+            System.out.println("- Records misses:   " + this.recordsMisses);
+            System.out.println("- Overflow hits:    " + this.overflowHits);
+            System.out.println("- Overflow misses:  " + this.overflowMisses);
+            System.out.println(String.format("== Hit ratio:       %.2f%%", this.hitRatio() * 100));
+            System.out.println("Overflow filter stats:");
+            System.out.println("- Skipped chains:   " + this.filterSkips);
+            System.out.println("- False positives:  " + this.filterFalsePositives);
+            System.out.println(String.format("== False pos. rate: %.2f%%", this.filterFalsePositiveRate() * 100));
+            System.out.println("Overflow chain stats:");
+            System.out.println("- Chain walks:      " + this.chainWalks);
+            System.out.println("- Walked records:   " + this.walkedRecords);
+            System.out.println(String.format("== Average walk:    %.2f", this.averageChainWalk()));
         }
 
         public IOStats minus(IOStats stats) {
@@ -443,6 +1320,16 @@ public class ISAM {
             io.recordsWrites = this.recordsWrites - stats.recordsWrites;
             io.overflowReads = this.overflowReads - stats.overflowReads;
             io.overflowWrites = this.overflowWrites - stats.overflowWrites;
+            io.indexHits = this.indexHits - stats.indexHits;
+            io.indexMisses = this.indexMisses - stats.indexMisses;
+            io.recordsHits = this.recordsHits - stats.recordsHits;
+            io.recordsMisses = this.recordsMisses - stats.recordsMisses;
+            io.overflowHits = this.overflowHits - stats.overflowHits;
+            io.overflowMisses = this.overflowMisses - stats.overflowMisses;
+            io.filterSkips = this.filterSkips - stats.filterSkips;
+            io.filterFalsePositives = this.filterFalsePositives - stats.filterFalsePositives;
+            io.chainWalks = this.chainWalks - stats.chainWalks;
+            io.walkedRecords = this.walkedRecords - stats.walkedRecords;
             return io;
         }
     }
@@ -455,43 +1342,73 @@ public class ISAM {
         io.recordsWrites = records.pageWriteCount;
         io.overflowReads = records.overflow.pageReadCount;
         io.overflowWrites = records.overflow.pageWriteCount;
+        io.indexHits = index.cacheHitCount;
+        io.indexMisses = index.cacheMissCount;
+        io.recordsHits = records.cacheHitCount;
+        io.recordsMisses = records.cacheMissCount;
+        io.overflowHits = records.overflow.cacheHitCount;
+        io.overflowMisses = records.overflow.cacheMissCount;
+        io.filterSkips = records.filter.skippedWalks.get();
+        io.filterFalsePositives = records.filter.falsePositives.get();
+        io.chainWalks = records.overflow.chainWalks.get();
+        io.walkedRecords = records.overflow.walkedRecords.get();
         return io;
     }
 
+    // Cursor over records with keys from `fromKey` to `toKey` (both inclusive) in key order, see `ScanCursor`
+    public ScanCursor scan(int fromKey, int toKey) throws IOException {
+        structureLock.readLock().lock();
+        try {
+            int firstPage = index.pageAmount == 0 ? 0 : index.lookUpPageFor(fromKey);
+            return new ScanCursor(records, Math.max(firstPage, 0), fromKey, toKey);
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
     // TODO: printInSequenceRW influences RW counters, change it
+    // Runs under the exclusive lock, so chains do not change while they are printed
     public void printInSequenceRW(boolean showDeleted) throws IOException {
-
-        for (int pi = 0; pi < records.pageAmount; pi++) {
-            TRecordPage p = records.getPage(pi);
-            for (int ri = 0; ri < p.recordAmount; ri++) {
-                TRecord r = p.getRecordFromPos(ri);
-                if (r.deleted) {
-                    if (showDeleted) {
-                        System.out.print(r.key + "_ ");
-                    }
-                } else {
-                    System.out.print(r.key + " ");
-                }
-                while (r.next.exists()) {
-                    r = records.overflow.getRecordFromOverflow(r.next);
-                    if (r.deleted) {
-                        if (showDeleted) {
-                            System.out.print(r.key + "_ ");
+        structureLock.writeLock().lock();
+        try {
+            for (int pi = records.pageAmount == 0 ? -1 : 0; pi != -1; pi = records.nextInKeyOrder(pi)) {
+                TRecordPage p = records.getPinnedPage(pi);
+                try {
+                    for (int ri = 0; ri < p.recordAmount; ri++) {
+                        TRecord r = p.getRecordFromPos(ri);
+                        if (r.deleted) {
+                            if (showDeleted) {
+                                System.out.print(r.key + "_ ");
+                            }
+                        } else {
+                            System.out.print(r.key + " ");
+                        }
+                        while (r.next.exists()) {
+                            r = records.overflow.getRecordFromOverflow(r.next);
+                            if (r.deleted) {
+                                if (showDeleted) {
+                                    System.out.print(r.key + "_ ");
+                                }
+                            } else {
+                                System.out.print(r.key + " ");
+                            }
                         }
-                    } else {
-                        System.out.print(r.key + " ");
                     }
+                } finally {
+                    records.unpin(p);
                 }
             }
+            System.out.println();
+        } finally {
+            structureLock.writeLock().unlock();
         }
-        System.out.println();
     }
 
     public void printStatsSinceLastOp() {
-        if (operationsStats.size() < 2) {
+        IOStats io = operationsStats.lastDelta();
+        if (io == null) {
             return;
         }
-        IOStats io = operationsStats.getLast().minus(operationsStats.get(operationsStats.size() - 2));
         if (io.totalReads() != 0 || io.totalWrites() != 0) {
             System.out.println("[S] Last operation required:");
         }
@@ -528,10 +1445,33 @@ public class ISAM {
         System.out.println("- Current deletion ratio:           " + currentDeletionRatio() * 100 + "%");
         System.out.println("- Deletion threshold:               " + deletionThreshold * 100 + "%");
         System.out.println("- Is auto reorganization enabled:   " + autoReorganization);
+        System.out.println("- Is local reorganization on:       " + localReorganization);
+        System.out.println("- Is background reorganization on:  " + backgroundReorganization);
+        System.out.println("- Is multi-level index enabled:     " + multiLevelIndex);
+        System.out.println("- Overflow cluster (primary pages): " + overflowClusterPages);
+        System.out.println("- Index levels:                     " + index.levelAmount());
         System.out.println("Record stats:");
         System.out.println("- Inserted records: " + insertedRecordAmount());
         System.out.println("- Deleted records:  " + deletedRecordAmount());
+        System.out.println("- Free overflow slots: " + records.overflow.freeSlotAmount());
+        System.out.println("- Split pages: " + records.splitCount);
         printIOStats();
+        printLatencies();
+    }
+
+    public void printLatencies() {
+        System.out.println("Latency (us):        ops        p50        p99      p99.9        max");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram h = latency(operation);
+            System.out.printf("- %-14s %10d %10.1f %10.1f %10.1f %10.1f%n", operation.name().toLowerCase(), h.count(),
+                h.percentile(50) / 1e3, h.percentile(99) / 1e3, h.percentile(99.9) / 1e3, h.max() / 1e3);
+        }
+    }
+
+    public void resetLatencies() {
+        for (LatencyHistogram h : latencies.values()) {
+            h.reset();
+        }
     }
 
     public void printIOStats() {
@@ -546,4 +1486,20 @@ public class ISAM {
         this.deletionThreshold = threshold;
     }
 
+    // With `clusterPages` > 0, new overflow records of `clusterPages` neighbouring primary pages fill their own overflow
+    // pages, so walking a chain reads few pages. Overflow file gets partially filled pages in exchange.
+    // With 0 (default) records are appended to the last overflow page.
+    public void setOverflowClusterPages(int clusterPages) {
+        if (clusterPages < 0) {
+            throw new IllegalArgumentException("Negative overflow cluster size");
+        }
+        writerLock.lock();
+        try {
+            this.overflowClusterPages = clusterPages;
+            records.overflow.clusterPages = clusterPages;
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
 }
@@ -0,0 +1,166 @@
+// JMX view of a single `ISAM`, registered with `ISAM.registerMonitor()`. Attributes are read without taking
+// the ISAM locks, so monitoring never waits for a reorganization, and a value can be from just before
+// an operation running at the same time. Thresholds and automatic reorganization apply from the next operation.
+public class ISAMMonitor implements ISAMMonitorMXBean {
+    private final ISAM isam;
+
+    public ISAMMonitor(ISAM isam) {
+        this.isam = isam;
+    }
+
+    @Override
+    public int getPageSize() {
+        return isam.pageSize;
+    }
+
+    @Override
+    public int getIndexPages() {
+        return isam.index.pageAmount;
+    }
+
+    @Override
+    public int getPrimaryPages() {
+        return isam.records.pageAmount;
+    }
+
+    @Override
+    public int getOverflowPages() {
+        return isam.records.overflow.pageAmount;
+    }
+
+    @Override
+    public int getInsertedRecords() {
+        return isam.insertedRecordAmount();
+    }
+
+    @Override
+    public int getDeletedRecords() {
+        return isam.deletedRecordAmount();
+    }
+
+    @Override
+    public double getOverflowRatio() {
+        return isam.currentOverflowRatio();
+    }
+
+    @Override
+    public double getDeletionRatio() {
+        return isam.currentDeletionRatio();
+    }
+
+    @Override
+    public boolean isReorganizationNeeded() {
+        return isam.needsReorganization();
+    }
+
+    @Override
+    public double getOverflowThreshold() {
+        return isam.overflowThreshold;
+    }
+
+    @Override
+    public void setOverflowThreshold(double threshold) {
+        isam.setOverflowThreshold(checkedThreshold(threshold));
+    }
+
+    @Override
+    public double getDeletionThreshold() {
+        return isam.deletionThreshold;
+    }
+
+    @Override
+    public void setDeletionThreshold(double threshold) {
+        isam.setDeletionThreshold(checkedThreshold(threshold));
+    }
+
+    @Override
+    public boolean isAutoReorganization() {
+        return isam.autoReorganization;
+    }
+
+    @Override
+    public void setAutoReorganization(boolean enabled) {
+        isam.autoReorganization = enabled;
+    }
+
+    @Override
+    public int getIndexReads() {
+        return isam.getStats().indexReads;
+    }
+
+    @Override
+    public int getIndexWrites() {
+        return isam.getStats().indexWrites;
+    }
+
+    @Override
+    public int getRecordsReads() {
+        return isam.getStats().recordsReads;
+    }
+
+    @Override
+    public int getRecordsWrites() {
+        return isam.getStats().recordsWrites;
+    }
+
+    @Override
+    public int getOverflowReads() {
+        return isam.getStats().overflowReads;
+    }
+
+    @Override
+    public int getOverflowWrites() {
+        return isam.getStats().overflowWrites;
+    }
+
+    @Override
+    public int getTotalReads() {
+        return isam.getStats().totalReads();
+    }
+
+    @Override
+    public int getTotalWrites() {
+        return isam.getStats().totalWrites();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        return isam.getStats().hitRatio();
+    }
+
+    @Override
+    public double getFilterFalsePositiveRate() {
+        return isam.getStats().filterFalsePositiveRate();
+    }
+
+    @Override
+    public double getAverageChainWalk() {
+        return isam.getStats().averageChainWalk();
+    }
+
+    @Override
+    public int getSplitPages() {
+        return isam.records.splitCount;
+    }
+
+    // Counted since the last `ISAM.resetLatencies()`
+    @Override
+    public long getReorganizations() {
+        return isam.latency(ISAM.Operation.REORGANIZATION).count();
+    }
+
+    // -1 if nothing was reorganized yet
+    @Override
+    public double getLastReorganizationMillis() {
+        long nanos = isam.lastReorganizationNanos();
+        return nanos < 0 ? -1 : nanos / 1e6;
+    }
+
+    // Ratio of 0 would reorganize on every operation, NaN would never reorganize
+    private static double checkedThreshold(double threshold) {
+        if (!(threshold > 0)) {
+            throw new IllegalArgumentException("Threshold has to be greater than 0, got " + threshold);
+        }
+        return threshold;
+    }
+}
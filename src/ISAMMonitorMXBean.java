@@ -0,0 +1,60 @@
+// Attributes of `ISAMMonitor`, as shown by JConsole or VisualVM under `isam:type=ISAM`
+public interface ISAMMonitorMXBean {
+    int getPageSize();
+
+    int getIndexPages();
+
+    int getPrimaryPages();
+
+    int getOverflowPages();
+
+    int getInsertedRecords();
+
+    int getDeletedRecords();
+
+    double getOverflowRatio();
+
+    double getDeletionRatio();
+
+    boolean isReorganizationNeeded();
+
+    double getOverflowThreshold();
+
+    void setOverflowThreshold(double threshold);
+
+    double getDeletionThreshold();
+
+    void setDeletionThreshold(double threshold);
+
+    boolean isAutoReorganization();
+
+    void setAutoReorganization(boolean enabled);
+
+    int getIndexReads();
+
+    int getIndexWrites();
+
+    int getRecordsReads();
+
+    int getRecordsWrites();
+
+    int getOverflowReads();
+
+    int getOverflowWrites();
+
+    int getTotalReads();
+
+    int getTotalWrites();
+
+    double getCacheHitRatio();
+
+    double getFilterFalsePositiveRate();
+
+    double getAverageChainWalk();
+
+    int getSplitPages();
+
+    long getReorganizations();
+
+    double getLastReorganizationMillis();
+}
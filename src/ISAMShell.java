@@ -1,5 +1,4 @@
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.Scanner;
@@ -12,11 +11,8 @@ public class ISAMShell {
 
     public String inputFilename = null;
 
-    ArrayList<String> executedCommands;
-
     public ISAMShell(ISAM isam) {
         this.isam = isam;
-        this.executedCommands = new ArrayList<>();
     }
 
     private void printCommands() {
@@ -30,12 +26,15 @@ public class ISAMShell {
         System.out.println();
         System.out.println("  [p]rint");
         System.out.println("  [ps|print sequence] <[all]?>              - 'all' parameters shows deleted records");
+        System.out.println("  scan <from> <to>                          - print records with keys in range");
         System.out.println("  [s]tats");
+        System.out.println("  latency <[reset]?>                        - operation latency percentiles, 'reset' clears them");
         System.out.println("  auto                                      - toggle auto reorganization (default is 'off')");
         System.out.println("  reorganize <[f]?>                         - use 'f' to force reorganization");
         System.out.println();
         System.out.println("  cleanup");
-        System.out.println("  save <filename?>                          - export operation statistics to CSV");
+        System.out.println("  save <filename?>                          - export statistics of the last operations to CSV");
+        System.out.println("  stream <filename?|stop>                   - write statistics of every following operation to CSV");
         System.out.println("  [f]lush");
         System.out.println("  [h]elp - show commands");
         System.out.println("  [e]xit");
@@ -101,7 +100,6 @@ public class ISAMShell {
                     } else {
                         System.out.println("Record: " + rec);
                     }
-                    executedCommands.add(line);
                     break;
                 }
                 case "insert":
@@ -124,7 +122,6 @@ public class ISAMShell {
                     TRecord rec = new TRecord(key, a, b, h);
                     int res = isam.insert(rec);
                     System.out.println("Inserted key=" + key + ", result=" + res);
-                    executedCommands.add(line);
                     break;
                 }
                 case "update":
@@ -144,7 +141,6 @@ public class ISAMShell {
                     } else {
                         System.out.println("Record updated.");
                     }
-                    executedCommands.add(line);
                     break;
                 }
                 case "delete":
@@ -160,7 +156,6 @@ public class ISAMShell {
                     } else {
                         System.out.println("Record deleted.");
                     }
-                    executedCommands.add(line);
                     break;
                 }
                 case "random":
@@ -191,7 +186,6 @@ public class ISAMShell {
 
                     if (insertedAmount == 0) {
                         System.out.println("Specified range of random numbers is exhausted. Try different `min`/`max` value.");
-                        executedCommands.add(line);
                         break;
                     }
 
@@ -202,7 +196,6 @@ public class ISAMShell {
                     }
                     System.out.println();
 
-                    executedCommands.add(line);
                     break;
                 }
 
@@ -235,7 +228,6 @@ public class ISAMShell {
 
                     if (deletedAmount == 0) {
                         System.out.println("Specified range of random numbers is exhausted. Try different `min`/`max` value.");
-                        executedCommands.add(line);
                         break;
                     }
                     System.out.println("Randomly deleted " + deletedAmount + " records: ");
@@ -244,7 +236,6 @@ public class ISAMShell {
                         System.out.print(k + " ");
                     }
                     System.out.println();
-                    executedCommands.add(line);
                     break;
                 }
                 case "print":
@@ -272,11 +263,35 @@ public class ISAMShell {
                     break;
                 }
 
+                case "scan": {
+                    if (parts.length != 3) {
+                        System.out.println("Usage: scan <from> <to>");
+                        break;
+                    }
+                    ScanCursor cursor = isam.scan(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                    int found = 0;
+                    while (cursor.hasNext()) {
+                        System.out.println(cursor.next());
+                        found++;
+                    }
+                    System.out.println("Found " + found + " records.");
+                    break;
+                }
+
                 case "stats":
                 case "s": {
                     isam.printStats();
                     break;
                 }
+                case "latency": {
+                    if (parts.length == 2 && parts[1].equals("reset")) {
+                        isam.resetLatencies();
+                        System.out.println("Latencies reset.");
+                    } else {
+                        isam.printLatencies();
+                    }
+                    break;
+                }
                 case "auto": {
                     isam.autoReorganization = !isam.autoReorganization;
                     if (isam.autoReorganization) {
@@ -300,7 +315,6 @@ public class ISAMShell {
                             System.out.println("Not reorganized!");
                         }
                     }
-                    executedCommands.add(line);
                     break;
                 }
 
@@ -317,6 +331,20 @@ public class ISAMShell {
                     break;
                 }
 
+                case "stream": {
+                    if (parts.length > 2) {
+                        System.out.println("Usage: stream <filename?|stop>");
+                        break;
+                    }
+                    if (parts.length == 2 && parts[1].equals("stop")) {
+                        isam.stopStatsStream();
+                        System.out.println("Streaming stopped.");
+                    } else {
+                        isam.streamStatsToCSV(parts.length == 2 ? parts[1] : inputFilename);
+                    }
+                    break;
+                }
+
                 case "flush":
                 case "f": {
                     isam.flush();
@@ -325,7 +353,6 @@ public class ISAMShell {
                 }
                 case "cleanup": {
                     isam.cleanupFull();
-                    executedCommands.clear();
                     System.out.println("Cleaned up.");
                     break;
                 }
@@ -337,7 +364,7 @@ public class ISAMShell {
 
                 case "exit":
                 case "e": {
-                    isam.flush();
+                    isam.close();
                     System.out.println("Bye.");
                     return false;
                 }
@@ -355,7 +382,7 @@ public class ISAMShell {
 
     private void saveCSV(String filename) {
         try {
-            isam.exportStatsToCSV(filename, executedCommands);
+            isam.exportStatsToCSV(filename);
         } catch (IOException e) {
             System.out.println("Error exporting CSV: " + e.getMessage());
         }
@@ -1,12 +1,56 @@
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Index extends PagedFile<IndexPage> {
 
     int smallestKey = -1;
 
-    public Index(String filename, int pageSize) throws FileNotFoundException {
-        super(filename, pageSize);
+    // Entries kept in memory, `index.dat` is only written.
+    // Without levels it is the whole sparse index, with levels only entries appended after `buildLevels()`
+    int[] keys;
+    int[] pageNums;
+    int size;
+    int residentFirstPage;
+
+    // Static tree built by `buildLevels()`:
+    // - level 0 pages point to primary pages
+    // - level n pages point to pages of level n - 1
+    // Last level is a single root page
+    int[] levelFirstPage;
+    int[] levelPageAmount;
+    int treeEntries;
+
+    // Lookups consider only entries up to the first one smaller than its predecessor, as the linear scan did.
+    // Only the first key is ever changed, later entries are just appended (or inserted into sorted entries),
+    // so the ordering is tracked on the way.
+    int firstKey;
+    int secondKey;
+    int lastKey;
+    int unsortedFrom;
+
+    // Pages of resident entries from this one on are older than the entries, -1 if none is.
+    // Sorted inserts shift entries of every following page, the pages are rebuilt only before they are needed.
+    private int staleFrom = -1;
+
+    // Lookups share it, changes of entries take it exclusively
+    final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
+    public Index(String filename, int pageSize) throws IOException {
+        this(filename, pageSize, DEFAULT_BUFFER_FRAMES, IPageStorage.Mode.RANDOM_ACCESS);
+    }
+
+    public Index(String filename, int pageSize, int bufferFrames, IPageStorage.Mode storageMode) throws IOException {
+        super(filename, pageSize, bufferFrames, storageMode);
+        keys = new int[Math.max(pageSize, 1)];
+        pageNums = new int[Math.max(pageSize, 1)];
+        size = 0;
+        residentFirstPage = 0;
+        levelFirstPage = new int[0];
+        levelPageAmount = new int[0];
+        treeEntries = 0;
+        unsortedFrom = -1;
     }
 
     @Override
@@ -15,55 +59,441 @@ public class Index extends PagedFile<IndexPage> {
     }
 
     public int insert(IndexRecord indexRecord) throws IOException {
-        IndexPage lastNonEmptyPage = getLastNonFullPage();
-        fileInsertedAmount++;
-        return lastNonEmptyPage.insert(indexRecord);
+        latch.writeLock().lock();
+        try {
+            writeStale();
+            trackOrder(indexRecord.key);
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                pageNums = Arrays.copyOf(pageNums, size * 2);
+            }
+            keys[size] = indexRecord.key;
+            pageNums[size] = indexRecord.pageNum;
+            size++;
+            fileInsertedAmount++;
+            writeThrough(size - 1);
+            return 0;
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // Rebuilds page holding resident entry `n` from memory, so the page never has to be read
+    private void writeThrough(int n) throws IOException {
+        int pageIdx = residentFirstPage + n / pageSize;
+        IndexPage ip = pageIdx == pageAmount ? getPinnedNewPage() : getPinnedBlankPage(pageIdx);
+        int first = (pageIdx - residentFirstPage) * pageSize;
+        ip.recordAmount = Math.min(size - first, pageSize);
+        for (int i = 0; i < ip.recordAmount; i++) {
+            ip.data[i].key = keys[first + i];
+            ip.data[i].pageNum = pageNums[first + i];
+        }
+        markDirty(ip);
+        unpin(ip);
+    }
+
+    private void writeStale() throws IOException {
+        if (staleFrom == -1) {
+            return;
+        }
+        for (int n = staleFrom - staleFrom % pageSize; n < size; n += pageSize) {
+            writeThrough(n);
+        }
+        staleFrom = -1;
+    }
+
+    @Override
+    public void writeCachedPages() throws IOException {
+        latch.writeLock().lock();
+        try {
+            writeStale();
+        } finally {
+            latch.writeLock().unlock();
+        }
+        super.writeCachedPages();
+    }
+
+    @Override
+    public void print() throws IOException {
+        writeCachedPages();
+        super.print();
+    }
+
+    private void trackOrder(int key) {
+        int n = treeEntries + size;
+        if (n == 0) {
+            firstKey = key;
+        } else if (n == 1) {
+            secondKey = key;
+        } else if (unsortedFrom == -1 && key < lastKey) {
+            unsortedFrom = n;
+        }
+        lastKey = key;
+    }
+
+    private int sortedLength() {
+        int n = treeEntries + size;
+        if (n > 1 && firstKey > secondKey) {
+            return 1;
+        }
+        return unsortedFrom == -1 ? n : unsortedFrom;
     }
 
-    // Linear lookup in the index
+    @Override
+    protected void serializeHeaderExtra(ByteBuffer buffer) {
+        if (buffer.remaining() < Integer.BYTES * (9 + 2 * levelAmount())) {
+            throw new IllegalStateException("Too many index levels to fit into the header");
+        }
+        buffer.putInt(smallestKey);
+        buffer.putInt(firstKey);
+        buffer.putInt(secondKey);
+        buffer.putInt(lastKey);
+        buffer.putInt(unsortedFrom);
+        buffer.putInt(size);
+        buffer.putInt(residentFirstPage);
+        buffer.putInt(treeEntries);
+        buffer.putInt(levelAmount());
+        for (int level = 0; level < levelAmount(); level++) {
+            buffer.putInt(levelFirstPage[level]);
+            buffer.putInt(levelPageAmount[level]);
+        }
+    }
+
+    // Resident entries are loaded back from their pages, upper levels stay on disk
+    @Override
+    protected void deserializeHeaderExtra(ByteBuffer buffer) throws IOException {
+        smallestKey = buffer.getInt();
+        firstKey = buffer.getInt();
+        secondKey = buffer.getInt();
+        lastKey = buffer.getInt();
+        unsortedFrom = buffer.getInt();
+        int residentAmount = buffer.getInt();
+        residentFirstPage = buffer.getInt();
+        treeEntries = buffer.getInt();
+        int levels = buffer.getInt();
+        levelFirstPage = new int[levels];
+        levelPageAmount = new int[levels];
+        for (int level = 0; level < levels; level++) {
+            levelFirstPage[level] = buffer.getInt();
+            levelPageAmount[level] = buffer.getInt();
+        }
+
+        keys = new int[Math.max(residentAmount, Math.max(pageSize, 1))];
+        pageNums = new int[keys.length];
+        size = 0;
+        for (int p = residentFirstPage; size < residentAmount; p++) {
+            IndexPage ip = readPinnedPage(p);
+            if (ip == null) {
+                throw new IOException(filename + " is missing index page " + p);
+            }
+            for (int i = 0; i < ip.recordAmount; i++) {
+                keys[size] = ip.data[i].key;
+                pageNums[size] = ip.data[i].pageNum;
+                size++;
+            }
+            unpin(ip);
+        }
+
+        pinTopLevels();
+    }
+
+    public boolean hasLevels() {
+        return levelFirstPage.length > 0;
+    }
+
+    public int levelAmount() {
+        return levelFirstPage.length;
+    }
+
+    // Builds upper levels over resident entries (level 0) and drops them from memory.
+    // Top levels are pinned in buffer pool as long as they leave enough free frames.
+    public void buildLevels() throws IOException {
+        if (hasLevels()) {
+            throw new IllegalStateException("Index levels are already built");
+        }
+        writeStale();
+        if (size == 0 || sortedLength() != size) {
+            return;
+        }
+
+        int[] firstPages = new int[] { 0 };
+        int[] pageAmounts = new int[] { pageAmount };
+
+        // First key of every page of the level below
+        int[] lowerKeys = new int[pageAmount];
+        for (int p = 0; p < pageAmount; p++) {
+            lowerKeys[p] = keys[p * pageSize];
+        }
+        int lowerFirstPage = 0;
+
+        while (lowerKeys.length > 1) {
+            int levelFirst = pageAmount;
+            int levelPages = (lowerKeys.length + pageSize - 1) / pageSize;
+            int[] levelKeys = new int[levelPages];
+            for (int lp = 0; lp < levelPages; lp++) {
+                IndexPage ip = getPinnedNewPage();
+                int first = lp * pageSize;
+                ip.recordAmount = Math.min(lowerKeys.length - first, pageSize);
+                for (int i = 0; i < ip.recordAmount; i++) {
+                    ip.data[i].key = lowerKeys[first + i];
+                    ip.data[i].pageNum = lowerFirstPage + first + i;
+                }
+                markDirty(ip);
+                unpin(ip);
+                levelKeys[lp] = lowerKeys[first];
+            }
+
+            firstPages = Arrays.copyOf(firstPages, firstPages.length + 1);
+            pageAmounts = Arrays.copyOf(pageAmounts, pageAmounts.length + 1);
+            firstPages[firstPages.length - 1] = levelFirst;
+            pageAmounts[pageAmounts.length - 1] = levelPages;
+
+            lowerKeys = levelKeys;
+            lowerFirstPage = levelFirst;
+        }
+
+        levelFirstPage = firstPages;
+        levelPageAmount = pageAmounts;
+        treeEntries = size;
+
+        keys = new int[Math.max(pageSize, 1)];
+        pageNums = new int[Math.max(pageSize, 1)];
+        size = 0;
+        residentFirstPage = pageAmount;
+
+        pinTopLevels();
+    }
+
+    private void pinTopLevels() throws IOException {
+        int pinLimit = bufferPool.capacity() - BufferPool.MIN_FRAMES;
+        int pinned = 0;
+        for (int level = levelAmount() - 1; level >= 0; level--) {
+            if (pinned + levelPageAmount[level] > pinLimit) {
+                return;
+            }
+            for (int p = 0; p < levelPageAmount[level]; p++) {
+                getPinnedPage(levelFirstPage[level] + p);
+            }
+            pinned += levelPageAmount[level];
+        }
+    }
+
+    // Returns page of the record with `key` or the page of the closest smaller key (0 if there is none).
+    // With levels it reads one index page per level, otherwise it needs no page I/O at all.
     public int lookUpPageFor(int key) throws IOException {
-        int lastPageNum = 0;
-        int prevKey = 0;
-        int currPage = 0;
-        while (currPage < pageAmount) {
-            IndexPage p = readPage(currPage);
-            if (p == null) {
-                return lastPageNum;
-            }
-
-            for (int i = 0; i < pageSize; i++) {
-                if (prevKey > p.data[i].key) {
-                    return lastPageNum;
+        latch.readLock().lock();
+        try {
+            return lookUp(key, null);
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // Same as `lookUpPageFor(key)`, `upper[0]` is set to a bigger key (`Integer.MAX_VALUE` if there is none),
+    // keys from `key` up to it (exclusive) are on the same page as long as the index does not change
+    public int lookUpPageFor(int key, int[] upper) throws IOException {
+        latch.readLock().lock();
+        try {
+            upper[0] = Integer.MAX_VALUE;
+            return lookUp(key, upper);
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // `upper` is null or it gets lowered to the key of an entry after `key`
+    private int lookUp(int key, int[] upper) throws IOException {
+        int sorted = sortedLength();
+        if (!hasLevels()) {
+            return lookUpResident(key, sorted, upper);
+        }
+        if (sorted == 1) {
+            IndexPage ip = getPinnedPage(0);
+            try {
+                if (key >= ip.data[0].key) {
+                    return ip.data[0].pageNum;
+                }
+                lower(upper, ip.data[0].key);
+                return 0;
+            } finally {
+                unpin(ip);
+            }
+        }
+        if (sorted > treeEntries) {
+            if (key >= keys[0]) {
+                return lookUpResident(key, sorted - treeEntries, upper);
+            }
+            // Resident entries follow the tree
+            lower(upper, keys[0]);
+        }
+
+        int pageNum = levelFirstPage[levelAmount() - 1];
+        for (int level = levelAmount() - 1; level >= 0; level--) {
+            IndexPage ip = getPinnedPage(pageNum);
+            try {
+                int pos = ip.findFloorPos(key);
+                if (level == 0 && pos == -1) {
+                    lower(upper, ip.data[0].key);
+                    return 0;
                 }
-                if (p.data[i].key < key) {
-                    lastPageNum = p.data[i].pageNum;
+                // Keys smaller than every key of the level still belong to its first page
+                pos = Math.max(pos, 0);
+                if (pos + 1 < ip.recordAmount) {
+                    lower(upper, ip.data[pos + 1].key);
                 }
-                if (p.data[i].key > key) {
-                    if (i == pageSize - 1) {
-                        currPage++;
-                        continue;
+                pageNum = ip.data[pos].pageNum;
+            } finally {
+                unpin(ip);
+            }
+        }
+        return pageNum;
+    }
+
+    private int lookUpResident(int key, int limit, int[] upper) {
+        int lo = 0;
+        int hi = limit;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo < limit && keys[lo] == key) {
+            if (lo + 1 < limit) {
+                lower(upper, keys[lo + 1]);
+            }
+            return pageNums[lo];
+        }
+        if (lo < limit) {
+            lower(upper, keys[lo]);
+        }
+        return lo == 0 ? 0 : pageNums[lo - 1];
+    }
+
+    private static void lower(int[] upper, int key) {
+        if (upper != null && key < upper[0]) {
+            upper[0] = key;
+        }
+    }
+
+    public int entryAmount() {
+        return treeEntries + size;
+    }
+
+    public boolean isSorted() {
+        return sortedLength() == entryAmount();
+    }
+
+    // Changes key of entry `n` in place, new key must keep entries sorted.
+    // With levels, keys of upper levels starting with the entry are changed as well.
+    public void setEntryKey(int n, int key) throws IOException {
+        latch.writeLock().lock();
+        try {
+            writeStale();
+            if (n >= treeEntries) {
+                keys[n - treeEntries] = key;
+                writeThrough(n - treeEntries);
+            } else {
+                int entry = n;
+                for (int level = 0; level < levelAmount(); level++) {
+                    IndexPage ip = getPinnedPage(levelFirstPage[level] + entry / pageSize);
+                    ip.data[entry % pageSize].key = key;
+                    markDirty(ip);
+                    unpin(ip);
+                    if (entry % pageSize != 0) {
+                        break;
                     }
-                    return lastPageNum;
+                    entry /= pageSize;
                 }
-                if (p.data[i].key == key) {
-                    return p.data[i].pageNum;
+            }
+            if (n == 0) {
+                firstKey = key;
+            } else if (n == 1) {
+                secondKey = key;
+            }
+            if (n == entryAmount() - 1) {
+                lastKey = key;
+            }
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // Inserts entry in key order, entries have to be sorted and all resident
+    public void insertSorted(IndexRecord indexRecord) throws IOException {
+        latch.writeLock().lock();
+        try {
+            if (hasLevels() || !isSorted()) {
+                throw new IllegalStateException("Sorted insert needs sorted index without levels");
+            }
+            int pos = 0;
+            int hi = size;
+            while (pos < hi) {
+                int mid = (pos + hi) >>> 1;
+                if (keys[mid] <= indexRecord.key) {
+                    pos = mid + 1;
+                } else {
+                    hi = mid;
                 }
-                prevKey = p.data[i].key;
             }
-            currPage++;
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                pageNums = Arrays.copyOf(pageNums, size * 2);
+            }
+            System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+            System.arraycopy(pageNums, pos, pageNums, pos + 1, size - pos);
+            keys[pos] = indexRecord.key;
+            pageNums[pos] = indexRecord.pageNum;
+            size++;
+            fileInsertedAmount++;
+            firstKey = keys[0];
+            secondKey = size > 1 ? keys[1] : secondKey;
+            lastKey = keys[size - 1];
+            staleFrom = staleFrom == -1 ? pos : Math.min(staleFrom, pos);
+        } finally {
+            latch.writeLock().unlock();
         }
-        return lastPageNum;
     }
 
-    public int getInsertPageFor(int key)  throws IOException {
+    // Primary pages in key order, null if it cannot be told (levels, unsorted entries or not one entry per page)
+    public int[] pageOrder(int primaryPageAmount) {
+        latch.readLock().lock();
+        try {
+            if (hasLevels() || !isSorted() || size != primaryPageAmount) {
+                return null;
+            }
+            return Arrays.copyOf(pageNums, size);
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    public int getInsertPageFor(int key) throws IOException {
         int r = lookUpPageFor(key);
         if (r == -1) return 0;
         return r;
     }
 
     public void updateSmallestKey(int key) throws IOException {
-        IndexPage ip = getPage(0);
-        ip.data[0].key = key;
-        smallestKey = key;
+        latch.writeLock().lock();
+        try {
+            if (hasLevels()) {
+                // Upper levels send keys smaller than their first key to the first page anyway
+                IndexPage ip = getPinnedPage(0);
+                ip.data[0].key = key;
+                markDirty(ip);
+                unpin(ip);
+            } else {
+                writeStale();
+                keys[0] = key;
+                writeThrough(0);
+            }
+            smallestKey = key;
+            firstKey = key;
+        } finally {
+            latch.writeLock().unlock();
+        }
     }
 }
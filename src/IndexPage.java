@@ -1,36 +1,28 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class IndexPage extends Page<IndexRecord> {
 
-    @Override
-    protected IndexRecord createRecordInstance() {
-        return new IndexRecord();
-    }
-
-    @Override
-    protected IndexRecord[] createRecordArray() {
-        return new IndexRecord[pageSize];
-    }
+    IndexRecord[] data;
 
     public IndexPage(int pageSize) {
         super(pageSize);
+        data = new IndexRecord[pageSize];
     }
 
     @Override
-    protected void serializeBody(DataOutputStream dos) throws IOException {
+    protected void serializeBody(ByteBuffer buffer) {
         for (IndexRecord indexRecord : data) {
-            indexRecord.serializeData(dos);
+            indexRecord.serializeData(buffer);
         }
     }
 
     @Override
-    protected void deserializeBody(DataInputStream dis) throws IOException {
+    protected void deserializeBody(ByteBuffer buffer) {
         for (int i = 0; i < data.length; i++) {
-            IndexRecord ir = new IndexRecord();
-            ir.deserializeData(dis);
-            data[i] = ir;
+            if (data[i] == null) {
+                data[i] = new IndexRecord();
+            }
+            data[i].deserializeData(buffer);
         }
     }
 
@@ -63,9 +55,37 @@ public class IndexPage extends Page<IndexRecord> {
         return null;
     }
 
+    // Returns position of the last record with key not bigger than `key` or -1
+    public int findFloorPos(int key) {
+        int lo = 0;
+        int hi = recordAmount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (data[mid].key <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - 1;
+    }
+
+    @Override
+    protected IndexRecord getRecordFromPos(int pos) {
+        if  (pos < 0 || pos >= data.length) {
+            return null;
+        }
+        return data[pos];
+    }
+
+    @Override
+    public boolean isDeleted(int pos) {
+        return data[pos].deleted;
+    }
+
     @Override
     protected int getSizeBytesRest() {
-        return new IndexRecord().getSizeBytes() * pageSize;
+        return IndexRecord.SIZE_BYTES * pageSize;
     }
 
 
@@ -1,8 +1,8 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class IndexRecord extends Record {
+    public static final int SIZE_BYTES = Integer.BYTES * 2;
+
     int pageNum;
     public IndexRecord(int key, int pageNum) {
         this.key = key;
@@ -15,15 +15,15 @@ public class IndexRecord extends Record {
     }
 
     @Override
-    public void serializeData(DataOutputStream dos) throws IOException {
-        dos.writeInt(key);
-        dos.writeInt(pageNum);
+    public void serializeData(ByteBuffer buffer) {
+        buffer.putInt(key);
+        buffer.putInt(pageNum);
     }
 
     @Override
-    public void deserializeData(DataInputStream dis) throws IOException {
-        key = dis.readInt();
-        pageNum = dis.readInt();
+    public void deserializeData(ByteBuffer buffer) {
+        key = buffer.getInt();
+        pageNum = buffer.getInt();
     }
 
     @Override
@@ -36,6 +36,6 @@ public class IndexRecord extends Record {
 
     @Override
     public int getSizeBytes() {
-        return Integer.BYTES * 2;
+        return SIZE_BYTES;
     }
 }
@@ -0,0 +1,94 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Java Flight Recorder events, enable them with `-XX:StartFlightRecording` and look at them in JMC.
+// Callers begin an event before the work and fill its fields only if `shouldCommit()`, so with recording off
+// the JIT leaves next to nothing of them. Page events are frequent, they are recorded without stack traces.
+public class IsamEvents {
+    @Name("isam.PageRead")
+    @Label("Page Read")
+    @Category({"ISAM", "Storage"})
+    @Description("Pages read from a file into the buffer pool with a single storage read")
+    @StackTrace(false)
+    public static class PageRead extends Event {
+        @Label("File")
+        String file;
+        @Label("First Page")
+        int pageNum;
+        @Label("Pages")
+        int pages;
+    }
+
+    @Name("isam.PageWrite")
+    @Label("Page Write")
+    @Category({"ISAM", "Storage"})
+    @Description("Pages written to a file with a single storage write")
+    @StackTrace(false)
+    public static class PageWrite extends Event {
+        @Label("File")
+        String file;
+        @Label("First Page")
+        int pageNum;
+        @Label("Pages")
+        int pages;
+    }
+
+    @Name("isam.PageEviction")
+    @Label("Page Eviction")
+    @Category({"ISAM", "Buffer Pool"})
+    @Description("Page removed from the buffer pool to free a frame, dirty pages are written first")
+    @StackTrace(false)
+    public static class PageEviction extends Event {
+        @Label("File")
+        String file;
+        @Label("Page")
+        int pageNum;
+        @Label("Dirty")
+        boolean dirty;
+    }
+
+    @Name("isam.PageAllocation")
+    @Label("Page Allocation")
+    @Category({"ISAM", "Storage"})
+    @Description("New page appended to a file")
+    @StackTrace(false)
+    public static class PageAllocation extends Event {
+        @Label("File")
+        String file;
+        @Label("Page")
+        int pageNum;
+    }
+
+    @Name("isam.ChainWalk")
+    @Label("Overflow Chain Walk")
+    @Category("ISAM")
+    @Description("Lookup following an overflow chain")
+    @StackTrace(false)
+    public static class ChainWalk extends Event {
+        @Label("Key")
+        int key;
+        @Label("Records Walked")
+        int walked;
+        @Label("Found")
+        boolean found;
+    }
+
+    @Name("isam.Reorganization")
+    @Label("Reorganization")
+    @Category("ISAM")
+    @Description("Rebuild of primary pages: whole files (merged, parallel, by chains or a background copy) or spans of pages (local)")
+    public static class Reorganization extends Event {
+        @Label("Kind")
+        String kind;
+        @Label("Records Moved")
+        int records;
+        @Label("Primary Pages")
+        int primaryPages;
+        @Label("Overflow Records Before")
+        int overflowRecords;
+    }
+}
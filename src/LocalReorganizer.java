@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+// Rebuilds a span of neighbouring primary pages in place. Live records of the span (with their overflow chains)
+// are spread evenly over the same pages, so only the first keys of the pages change in the index.
+// The span grows towards the emptier neighbour until its records fit into it without overflow.
+public class LocalReorganizer {
+    private static class PageContent {
+        final int pageNum;
+        final ArrayList<TRecord> live = new ArrayList<>();
+        final ArrayList<TRecord.NextRecordPos> chainSlots = new ArrayList<>();
+        int primary;
+        int primaryDeleted;
+        int chainedDeleted;
+
+        PageContent(int pageNum) {
+            this.pageNum = pageNum;
+        }
+    }
+
+    final Index index;
+    final TRecords records;
+    // Most records a rebuilt page gets, the rest is left free for following inserts
+    final int recordsPerPage;
+    final int maxSpan;
+
+    // Primary pages rewritten so far and live records spread over them
+    int rebuiltPages;
+    int movedRecords;
+
+    public LocalReorganizer(Index index, TRecords records, double fillFactor) {
+        this.index = index;
+        this.records = records;
+        this.recordsPerPage = Math.max(1, Math.min(records.pageSize - 1, (int) (records.pageSize * fillFactor)));
+        this.maxSpan = Math.max(4, records.pageAmount / 4);
+        this.rebuiltPages = 0;
+    }
+
+    // Index has to have exactly one entry per primary page, in key order, and pages have to be stored in key order.
+    // With a single record per rebuilt page spans grow too fast to be cheaper than full reorganization.
+    public boolean isApplicable() {
+        return recordsPerPage > 1 && records.pageAmount > 0 && index.entryAmount() == records.pageAmount && index.isSorted()
+            && records.isInPageOrder();
+    }
+
+    // Returns false (and changes nothing) if no span small enough can hold records around `pageNum`
+    public boolean rebuildAround(int pageNum) throws IOException {
+        ArrayDeque<PageContent> span = new ArrayDeque<>();
+        span.add(read(pageNum));
+        int lo = pageNum;
+        int hi = pageNum;
+        int total = span.getFirst().live.size();
+        PageContent left = null;
+        PageContent right = null;
+        // Every page has to keep at least one record, its first key is in the index
+        while (total > span.size() * recordsPerPage || total < span.size()) {
+            if (span.size() == maxSpan) {
+                return false;
+            }
+            if (left == null && lo > 0) {
+                left = read(lo - 1);
+            }
+            if (right == null && hi < records.pageAmount - 1) {
+                right = read(hi + 1);
+            }
+            boolean takeLeft;
+            if (left == null && right == null) {
+                return false;
+            } else if (left == null || right == null) {
+                takeLeft = left != null;
+            } else if (total < span.size()) {
+                takeLeft = left.live.size() >= right.live.size();
+            } else {
+                takeLeft = left.live.size() <= right.live.size();
+            }
+            if (takeLeft) {
+                span.addFirst(left);
+                total += left.live.size();
+                left = null;
+                lo--;
+            } else {
+                span.addLast(right);
+                total += right.live.size();
+                right = null;
+                hi++;
+            }
+        }
+
+        ArrayList<TRecord> live = new ArrayList<>(total);
+        for (PageContent c : span) {
+            live.addAll(c.live);
+            records.fileInsertedAmount -= c.primary;
+            records.fileDeletedAmount -= c.primaryDeleted;
+            records.overflow.detach(c.pageNum, c.chainSlots, c.chainedDeleted);
+        }
+        records.fileInsertedAmount += total;
+
+        int pages = hi - lo + 1;
+        int next = 0;
+        for (int i = 0; i < pages; i++) {
+            int amount = total / pages + (i < total % pages ? 1 : 0);
+            TRecordPage page = records.getPinnedBlankPage(lo + i);
+            page.recordAmount = 0;
+            for (int j = 0; j < amount; j++) {
+                TRecord r = live.get(next++);
+                r.next.reset();
+                page.insert(r);
+            }
+            records.markDirty(page);
+            records.clearDamage(lo + i);
+            records.filter.clear(lo + i);
+            // First entry stays as it is, smaller keys belong to the first page anyway
+            if (lo + i != 0) {
+                index.setEntryKey(lo + i, page.keyAt(0));
+            }
+            records.unpin(page);
+        }
+        rebuiltPages += pages;
+        movedRecords += total;
+        return true;
+    }
+
+    private PageContent read(int pageNum) throws IOException {
+        PageContent c = new PageContent(pageNum);
+        TRecordPage page = records.getPinnedPage(pageNum);
+        TRecord.NextRecordPos pos = new TRecord.NextRecordPos();
+        try {
+            for (int i = 0; i < page.recordAmount; i++) {
+                TRecord r = page.getRecordFromPos(i);
+                c.primary++;
+                if (r.deleted) {
+                    c.primaryDeleted++;
+                } else {
+                    c.live.add(r);
+                }
+                pos.pageNum = r.next.pageNum;
+                pos.pagePos = r.next.pagePos;
+                while (pos.exists()) {
+                    c.chainSlots.add(new TRecord.NextRecordPos(pos.pagePos, pos.pageNum));
+                    TRecord o = records.overflow.getRecordFromOverflow(pos);
+                    pos.pageNum = o.next.pageNum;
+                    pos.pagePos = o.next.pagePos;
+                    if (o.deleted) {
+                        c.chainedDeleted++;
+                    } else {
+                        c.live.add(o);
+                    }
+                }
+            }
+        } finally {
+            records.unpin(page);
+        }
+        return c;
+    }
+}
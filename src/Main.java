@@ -6,23 +6,72 @@ import java.util.*;
 public class Main {
 
     public static void main(String[] args) throws Exception {
-        if (args.length < 3) {
-            System.out.println("Usage: java Main <pageSize> <overflowThreshold> <deleteThreshold> [input_file?]");
+        IPageStorage.Mode storageMode = IPageStorage.Mode.RANDOM_ACCESS;
+        int bufferFrames = PagedFile.DEFAULT_BUFFER_FRAMES;
+        boolean multiLevelIndex = false;
+        boolean openExisting = false;
+        boolean backgroundReorganization = false;
+        boolean localReorganization = false;
+        int reorganizationThreads = 1;
+        int overflowClusterPages = 0;
+        int splitChainLength = 0;
+        ArrayList<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--mmap")) {
+                storageMode = IPageStorage.Mode.MEMORY_MAPPED;
+            } else if (arg.equals("--open")) {
+                openExisting = true;
+            } else if (arg.equals("--local")) {
+                localReorganization = true;
+            } else if (arg.equals("--background")) {
+                backgroundReorganization = true;
+            } else if (arg.equals("--levels")) {
+                multiLevelIndex = true;
+            } else if (arg.startsWith("--frames=")) {
+                bufferFrames = Integer.parseInt(arg.substring("--frames=".length()));
+            } else if (arg.startsWith("--cluster=")) {
+                overflowClusterPages = Integer.parseInt(arg.substring("--cluster=".length()));
+            } else if (arg.startsWith("--split=")) {
+                splitChainLength = Integer.parseInt(arg.substring("--split=".length()));
+            } else if (arg.startsWith("--reorg-threads=")) {
+                reorganizationThreads = Integer.parseInt(arg.substring("--reorg-threads=".length()));
+            } else {
+                positional.add(arg);
+            }
+        }
+
+        if (positional.size() < 3) {
+            System.out.println("Usage: java Main <pageSize> <overflowThreshold> <deleteThreshold> [input_file?] [--mmap] [--frames=<n>] [--levels] [--open] [--background] [--local] [--reorg-threads=<n>] [--cluster=<n>] [--split=<n>]");
             System.exit(1);
         }
 
-        int pageSize = Integer.parseInt(args[0]);
-        double overflowThreshold = Double.parseDouble(args[1]);
-        double deletionThreshold = Double.parseDouble(args[2]);
-        String inputFile = args.length > 3 ? args[3] : null;
+        int pageSize = Integer.parseInt(positional.get(0));
+        double overflowThreshold = Double.parseDouble(positional.get(1));
+        double deletionThreshold = Double.parseDouble(positional.get(2));
+        String inputFile = positional.size() > 3 ? positional.get(3) : null;
 
         String INDEX_FILE = "index.dat";
         String RECORDS_FILE = "records.dat";
         String OVERFLOW_FILE = "overflow.dat";
 
-        ISAM isam = new ISAM(INDEX_FILE, RECORDS_FILE, OVERFLOW_FILE, pageSize);
+        ISAM isam;
+        if (openExisting) {
+            // Page size of existing files is kept
+            isam = ISAM.open(INDEX_FILE, RECORDS_FILE, OVERFLOW_FILE, bufferFrames, storageMode);
+            isam.multiLevelIndex |= multiLevelIndex;
+        } else {
+            isam = new ISAM(INDEX_FILE, RECORDS_FILE, OVERFLOW_FILE, pageSize, bufferFrames, storageMode);
+            isam.multiLevelIndex = multiLevelIndex;
+        }
+        isam.backgroundReorganization = backgroundReorganization;
+        isam.localReorganization = localReorganization;
+        isam.reorganizationThreads = reorganizationThreads;
+        isam.setOverflowClusterPages(overflowClusterPages);
+        isam.splitChainLength = splitChainLength;
         isam.setOverflowThreshold(overflowThreshold);
         isam.setDeletionThreshold(deletionThreshold);
+        // Visible to JConsole or VisualVM attached to this process
+        isam.registerMonitor();
 
         ISAMShell shell = new ISAMShell(isam);
 
@@ -33,8 +82,10 @@ public class Main {
             shell.run();
         } else {
             shell.inputFilename = inputFile;
+            long start = System.nanoTime();
             processFile(shell, inputFile);
-            System.out.println("\nInput file processed. Entering interactive mode");
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("\nInput file processed in " + elapsedMs + " ms (" + storageMode + "). Entering interactive mode");
             shell.run();
         }
     }
@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+// File is mapped in fixed size chunks, so it is not limited by the 2GB size of a single mapping
+public class MappedPageStorage implements IPageStorage {
+    public static final int CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final ArrayList<MappedByteBuffer> chunks;
+
+    // Mapping extends the file with zeros, so the end of written data is tracked separately
+    private long length;
+
+    public MappedPageStorage(String filename) throws IOException {
+        channel = new RandomAccessFile(filename, "rw").getChannel();
+        chunks = new ArrayList<>();
+        length = channel.size();
+    }
+
+    @Override
+    public int read(long pos, byte[] b) throws IOException {
+        if (pos >= length) {
+            return -1;
+        }
+        int toRead = (int) Math.min(b.length, length - pos);
+        copy(pos, b, toRead, false);
+        return toRead;
+    }
+
+    @Override
+    public void write(long pos, byte[] b) throws IOException {
+        copy(pos, b, b.length, true);
+        length = Math.max(length, pos + b.length);
+    }
+
+    @Override
+    public void setLength(long length) throws IOException {
+        this.length = length;
+        // Mapped file cannot be shrunk safely, the zeros past `length` are then just never read
+        if (chunks.isEmpty()) {
+            channel.truncate(length);
+        }
+    }
+
+    // Java has no way to unmap a chunk, it is unmapped once the dropped buffer is collected
+    @Override
+    public void close() throws IOException {
+        chunks.clear();
+        channel.close();
+    }
+
+    // Page can span two chunks, so it is copied piece by piece
+    private void copy(long pos, byte[] b, int amount, boolean write) throws IOException {
+        int done = 0;
+        while (done < amount) {
+            long curr = pos + done;
+            int chunkNum = (int) (curr / CHUNK_SIZE);
+            int chunkPos = (int) (curr % CHUNK_SIZE);
+            int n = Math.min(amount - done, CHUNK_SIZE - chunkPos);
+
+            MappedByteBuffer chunk = getChunk(chunkNum);
+            if (write) {
+                chunk.put(chunkPos, b, done, n);
+            } else {
+                chunk.get(chunkPos, b, done, n);
+            }
+            done += n;
+        }
+    }
+
+    private MappedByteBuffer getChunk(int chunkNum) throws IOException {
+        while (chunks.size() <= chunkNum) {
+            long start = (long) chunks.size() * CHUNK_SIZE;
+            chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, start, CHUNK_SIZE));
+        }
+        return chunks.get(chunkNum);
+    }
+}
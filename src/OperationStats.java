@@ -0,0 +1,158 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Page I/O of the last `capacity` operations in a ring buffer, with totals since the start, so memory stays the same
+// however many operations run. Every operation can also be streamed to a CSV file as it is recorded.
+public class OperationStats {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    static final String CSV_HEADER = "Operation," +
+        "Index Reads,Index Writes," +
+        "Records Reads,Records Writes," +
+        "Overflow Reads,Overflow Writes," +
+        "Total Reads,Total Writes," +
+        "Accumulative Reads,Accumulative Writes\n";
+
+    // Slots are written whole, so a reader never sees half of an operation
+    private record Entry(long n, String kind, long argument, ISAM.IOStats delta, long totalReadsAfter, long totalWritesAfter) {
+    }
+
+    private final int capacity;
+    // Operation `n` is at `n % capacity`, label is `kind` followed by `argument` (if not negative)
+    private final AtomicReferenceArray<Entry> entries;
+
+    // Recording threads take their operation number and slot from `recorded`, so they do not wait for each other
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong totalReads = new AtomicLong();
+    private final AtomicLong totalWrites = new AtomicLong();
+    // Counters at the end of the last operation, the next one is measured from here. Every snapshot is the start
+    // of exactly one delta, so deltas add up to the change of the counters even with operations running in parallel.
+    private final AtomicReference<ISAM.IOStats> last;
+    // Only streaming serializes recording threads
+    private volatile Writer stream;
+
+    public OperationStats(int capacity, ISAM.IOStats start) {
+        this.capacity = capacity;
+        this.entries = new AtomicReferenceArray<>(capacity);
+        this.last = new AtomicReference<>(start);
+    }
+
+    // `stats` are the counters after the operation
+    public void record(String kind, long argument, ISAM.IOStats stats) {
+        ISAM.IOStats delta = stats.minus(last.getAndSet(stats));
+        long reads = totalReads.addAndGet(delta.totalReads());
+        long writes = totalWrites.addAndGet(delta.totalWrites());
+        long n = recorded.getAndIncrement();
+        Entry entry = new Entry(n, kind, argument, delta, reads, writes);
+        entries.set((int) (n % capacity), entry);
+        if (stream != null) {
+            synchronized (this) {
+                if (stream != null) {
+                    try {
+                        stream.write(row(entry));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized void clear(ISAM.IOStats start) {
+        recorded.set(0);
+        totalReads.set(0);
+        totalWrites.set(0);
+        last.set(start);
+        for (int i = 0; i < capacity; i++) {
+            entries.set(i, null);
+        }
+    }
+
+    public long recordedAmount() {
+        return recorded.get();
+    }
+
+    // Operations still in the buffer
+    public int size() {
+        return (int) Math.min(recorded.get(), capacity);
+    }
+
+    // I/O of the last operation, null if there was none
+    public ISAM.IOStats lastDelta() {
+        Entry entry = entry(recorded.get() - 1);
+        return entry == null ? null : entry.delta;
+    }
+
+    // Operation `n` if it is still in the buffer and its recording thread has stored it
+    private Entry entry(long n) {
+        if (n < 0) {
+            return null;
+        }
+        Entry entry = entries.get((int) (n % capacity));
+        return entry != null && entry.n == n ? entry : null;
+    }
+
+    // Writes operations still in the buffer, oldest first
+    public void exportCSV(String filename) throws IOException {
+        long end = recorded.get();
+        try (Writer writer = new BufferedWriter(new FileWriter(filename))) {
+            writer.write(CSV_HEADER);
+            for (long n = Math.max(0, end - capacity); n < end; n++) {
+                Entry entry = entry(n);
+                if (entry != null) {
+                    writer.write(row(entry));
+                }
+            }
+        }
+    }
+
+    // Every following operation is appended to `filename` (replaced if it exists) until `stopStream()`
+    public synchronized void startStream(String filename) throws IOException {
+        stopStream();
+        Writer writer = new BufferedWriter(new FileWriter(filename));
+        writer.write(CSV_HEADER);
+        stream = writer;
+    }
+
+    public synchronized void flushStream() throws IOException {
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+
+    public synchronized void stopStream() throws IOException {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+
+    public boolean isStreaming() {
+        return stream != null;
+    }
+
+    private static String row(Entry entry) {
+        ISAM.IOStats delta = entry.delta;
+        String label = entry.argument < 0 ? entry.kind : entry.kind + " " + entry.argument;
+        return String.format(
+            "%s," +
+                "%d,%d," +
+                "%d,%d," +
+                "%d,%d," +
+                "%d,%d," +
+                "%d,%d\n",
+            label,
+            delta.indexReads, delta.indexWrites,
+            delta.recordsReads, delta.recordsWrites,
+            delta.overflowReads, delta.overflowWrites,
+            delta.totalReads(), delta.totalWrites(),
+            entry.totalReadsAfter, entry.totalWritesAfter
+        );
+    }
+}
@@ -1,104 +1,509 @@
-import java.io.FileNotFoundException;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Overflow extends PagedFile<TRecordPage> {
-    public Overflow(String filename, int pageSize) throws FileNotFoundException {
+    // Records no longer reachable from any primary page (moved out by local reorganization or a split) whose slots
+    // are not free yet, see `detach()`
+    int detachedAmount;
+
+    // Primary pages sharing overflow pages, new records of their chains go to the same few pages.
+    // With 0 every record is appended to the last page of the file.
+    int clusterPages;
+    // Overflow page taking new records of each cluster, -1 if it has none yet. Only the writer uses it, it is not saved.
+    private int[] clusterBucket = new int[0];
+
+    // Slots of deleted records unlinked from their chains, by cluster (all in cluster 0 without clustering).
+    // Reader that was on a chain when a slot got unlinked can still reach it, so the slot stays pending
+    // until no chain walk is in progress. Only the writer uses them.
+    private final HashMap<Integer, ArrayDeque<TRecord.NextRecordPos>> pendingSlots = new HashMap<>();
+    private final HashMap<Integer, ArrayDeque<TRecord.NextRecordPos>> freeSlots = new HashMap<>();
+    private int freeSlotAmount;
+    // Slots of detached chains, by cluster. Their records stay readable for readers still on the chains.
+    private final HashMap<Integer, ArrayDeque<TRecord.NextRecordPos>> detachedSlots = new HashMap<>();
+    // Saved free slots stop describing the file with the first change, the copy is deleted then
+    private String freeSlotsSavedAs;
+    // Readers following a chain, counted from the moment they read its head under the primary page latch
+    final AtomicInteger chainWalkers = new AtomicInteger();
+    // Lookups that walked a chain and the chain records they read, for the average walk length
+    final AtomicInteger chainWalks = new AtomicInteger();
+    final AtomicInteger walkedRecords = new AtomicInteger();
+    private static final int FREE_SLOTS_MAGIC = 0x49534653; // "ISFS"
+
+    public Overflow(String filename, int pageSize) throws IOException {
         super(filename, pageSize);
     }
 
+    public Overflow(String filename, int pageSize, int bufferFrames, IPageStorage.Mode storageMode) throws IOException {
+        super(filename, pageSize, bufferFrames, storageMode);
+    }
+
     @Override
     protected TRecordPage createPageInstance() {
         return new TRecordPage(pageSize);
     }
 
-    public TRecord findRecord(TRecord rootRecord, int key) throws IOException {
-        TRecord prev = rootRecord;
-        while (true) {
-            if (!prev.next.exists()) {
-                return null;
+    @Override
+    protected void serializeHeaderExtra(ByteBuffer buffer) {
+        buffer.putInt(detachedAmount);
+    }
+
+    @Override
+    protected void deserializeHeaderExtra(ByteBuffer buffer) {
+        detachedAmount = buffer.getInt();
+    }
+
+    // Amount of records still linked into chains (including deleted ones)
+    public int attachedAmount() {
+        return fileInsertedAmount - detachedAmount;
+    }
+
+    // Walks the chain starting at (`pageNum`, `pagePos`), found record is copied into `dst` (if not null).
+    // Only the current page is latched, records are never moved, so links stay valid after it is released.
+    public boolean findRecord(int pageNum, int pagePos, int key, TRecord dst) throws IOException {
+        IsamEvents.ChainWalk event = new IsamEvents.ChainWalk();
+        event.begin();
+        int walked = 0;
+        boolean found = false;
+        while (pageNum != -1 && pagePos != -1) {
+            TRecordPage page = getPinnedPage(pageNum);
+            page.latch.readLock().lock();
+            walked++;
+            try {
+                if (page.keyAt(pagePos) == key) {
+                    found = !page.isDeleted(pagePos);
+                    if (found && dst != null) {
+                        page.readRecord(pagePos, dst);
+                    }
+                    break;
+                }
+                pageNum = page.nextPageAt(pagePos);
+                pagePos = page.nextPosAt(pagePos);
+            } finally {
+                page.latch.readLock().unlock();
+                unpin(page);
             }
-            TRecord curr = getRecordFromOverflow(prev.next);
-            if (curr.key == key) {
-                if (curr.deleted) {
-                    return null;
+        }
+        chainWalks.incrementAndGet();
+        walkedRecords.addAndGet(walked);
+        if (event.shouldCommit()) {
+            event.key = key;
+            event.walked = walked;
+            event.found = found;
+            event.commit();
+        }
+        return found;
+    }
+
+    // Only the single writer changes chains, so it walks them without latches
+    private TRecord.NextRecordPos findRecordPos(int pageNum, int pagePos, int key) throws IOException {
+        while (pageNum != -1 && pagePos != -1) {
+            TRecordPage page = getPinnedPage(pageNum);
+            try {
+                if (page.keyAt(pagePos) == key && !page.isDeleted(pagePos)) {
+                    return new TRecord.NextRecordPos(pagePos, pageNum);
                 }
-                return curr;
+                int nextPageNum = page.nextPageAt(pagePos);
+                pagePos = page.nextPosAt(pagePos);
+                pageNum = nextPageNum;
+            } finally {
+                unpin(page);
             }
-            prev = curr;
         }
+        return null;
     }
 
-    public void insertToExistingLL(TRecord rootRecord, TRecord toInsert) throws IOException {
-        TRecord prev = rootRecord;
-        int prevCachedPageNum = cachedPage.pageNum;
+    // `rootPage` is a primary page, so the caller is responsible for latching it and marking it as dirty
+    public void insertToExistingLL(TRecordPage rootPage, int rootPos, TRecord toInsert) throws IOException {
+        TRecordPage prevPage = rootPage;
+        int prevPos = rootPos;
+        boolean prevPinned = false;
         while (true) {
-            TRecord curr = getRecordFromOverflow(prev.next);
-            if (curr != null) {
-                if (prev.key < toInsert.key && toInsert.key <= curr.key) {
-                    toInsert.next = prev.next;
-                    // here .insert() changes cachedPage, so `prev` loses its reference
-                    // to the record that has been in cachedPage just before .insert()
-                    prev.next = getLastAvailablePos();
-                    getPage(prevCachedPageNum);
-                    cachedPage.updateHard(prev.key, prev);
-
-                    insert(toInsert);
-                    break;
-                }
+            TRecordPage currPage = null;
+            int currPos = prevPage.nextPosAt(prevPos);
+            if (prevPage.hasNext(prevPos)) {
+                currPage = getPinnedPage(prevPage.nextPageAt(prevPos));
             }
-            if (curr == null) {
-                prev.next = getLastAvailablePos();
-                insert(toInsert);
+            if (currPage == null || (prevPage.keyAt(prevPos) < toInsert.key && toInsert.key <= currPage.keyAt(currPos))) {
+                if (currPage != null) {
+                    toInsert.next = new TRecord.NextRecordPos(currPos, currPage.pageNum);
+                }
+                try {
+                    insertAndLink(rootPage.pageNum, prevPage, prevPos, prevPinned, currPage, toInsert);
+                } finally {
+                    if (currPage != null) {
+                        unpin(currPage);
+                    }
+                }
                 break;
             }
-            prev = curr;
-            prevCachedPageNum = cachedPage.pageNum;
+            // `prevPage` has to stay in memory until it gets linked with `toInsert`
+            if (prevPinned) {
+                unpin(prevPage);
+            }
+            prevPage = currPage;
+            prevPos = currPos;
+            prevPinned = true;
         }
     }
 
-    public void insertToNewLL(TRecord rootRecord, TRecord toInsert) throws IOException {
-        rootRecord.next = getLastAvailablePos();
-        insert(toInsert);
+    public void insertToNewLL(TRecordPage rootPage, int rootPos, TRecord toInsert) throws IOException {
+        insertAndLink(rootPage.pageNum, rootPage, rootPos, false, null, toInsert);
     }
 
-    public int insert(TRecord record) throws IOException {
-        TRecordPage trp = getLastNonFullPage();
-        trp.insert(record);
-        fileInsertedAmount++;
-        return 0;
+    // Record is stored before the link to it is set, so readers following the chain never reach an empty slot.
+    // Pinned overflow `prevPage` is latched just for the link and unpinned, primary one is left to the caller.
+    // `nextPage` holds the record following `toInsert` (null at the end of the chain), its pin is left to the caller.
+    private void insertAndLink(int rootPageNum, TRecordPage prevPage, int prevPos, boolean prevInOverflow, TRecordPage nextPage, TRecord toInsert) throws IOException {
+        TRecord.NextRecordPos stored = insert(rootPageNum, prevInOverflow ? prevPage : null, nextPage, toInsert);
+        if (!prevInOverflow) {
+            prevPage.setNext(prevPos, stored.pageNum, stored.pagePos);
+            return;
+        }
+        prevPage.latch.writeLock().lock();
+        try {
+            prevPage.setNext(prevPos, stored.pageNum, stored.pagePos);
+            markDirty(prevPage);
+        } finally {
+            prevPage.latch.writeLock().unlock();
+            unpin(prevPage);
+        }
     }
 
-    public int updateRecord(TRecord rootRecord, TRecord updated) throws IOException {
-        TRecord toUpdate = findRecord(rootRecord, updated.key);
-        if (toUpdate.key != updated.key) {
-            throw new IOException("Key mismatch");
+    // Returns position of stored `record`. Clustered record goes next to its neighbours in the chain if there is
+    // space (`prevPage` is null if the predecessor is a primary record). Otherwise a free slot (of the cluster)
+    // is reused, only then the file grows.
+    private TRecord.NextRecordPos insert(int rootPageNum, TRecordPage prevPage, TRecordPage nextPage, TRecord record) throws IOException {
+        TRecordPage trp;
+        TRecord.NextRecordPos slot = null;
+        if (clusterPages != 0 && prevPage != null && !prevPage.isFull()) {
+            trp = prevPage;
+            pin(trp);
+        } else if (clusterPages != 0 && nextPage != null && !nextPage.isFull()) {
+            trp = nextPage;
+            pin(trp);
+        } else if ((slot = takeFreeSlot(cluster(rootPageNum))) != null) {
+            trp = getPinnedPage(slot.pageNum);
+        } else if (clusterPages == 0) {
+            trp = getPinnedLastNonFullPage();
+        } else {
+            trp = getPinnedClusterPage(rootPageNum / clusterPages, prevPage == null && nextPage == null);
         }
-        toUpdate.a = updated.a;
-        toUpdate.b = updated.b;
-        toUpdate.h = updated.h;
-        return 0;
+        TRecord.NextRecordPos pos = slot != null ? slot : new TRecord.NextRecordPos(trp.recordAmount, trp.pageNum);
+        trp.latch.writeLock().lock();
+        try {
+            if (slot != null) {
+                trp.setRecord(slot.pagePos, record);
+            } else {
+                trp.insert(record);
+            }
+            markDirty(trp);
+        } finally {
+            trp.latch.writeLock().unlock();
+            unpin(trp);
+        }
+        if (slot != null) {
+            fileDeletedAmount--;
+        } else {
+            fileInsertedAmount++;
+        }
+        return pos;
     }
 
-    public int deleteRecord(TRecord rootRecord, int key) throws IOException {
-        TRecord toDelete = findRecord(rootRecord, key);
-        if (toDelete == null) {
+    // New chain starts only on a page at most half full, the rest is kept for records continuing its chains
+    private TRecordPage getPinnedClusterPage(int cluster, boolean newChain) throws IOException {
+        if (cluster >= clusterBucket.length) {
+            int from = clusterBucket.length;
+            clusterBucket = Arrays.copyOf(clusterBucket, Math.max(cluster + 1, from * 2));
+            Arrays.fill(clusterBucket, from, clusterBucket.length, -1);
+        }
+        if (clusterBucket[cluster] != -1) {
+            TRecordPage page = getPinnedPage(clusterBucket[cluster]);
+            int limit = newChain ? Math.max(1, pageSize / 2) : pageSize;
+            if (page.recordAmount < limit) {
+                return page;
+            }
+            unpin(page);
+        }
+        TRecordPage page = getPinnedNewPage();
+        clusterBucket[cluster] = page.pageNum;
+        return page;
+    }
+
+    public int updateRecord(int pageNum, int pagePos, TRecord updated) throws IOException {
+        TRecord.NextRecordPos pos = findRecordPos(pageNum, pagePos, updated.key);
+        if (pos == null) {
             return -1;
         }
-        toDelete.deleted = true;
-        fileDeletedAmount++;
+        TRecordPage page = getPinnedPage(pos.pageNum);
+        page.latch.writeLock().lock();
+        try {
+            if (page.keyAt(pos.pagePos) != updated.key) {
+                throw new IOException("Key mismatch");
+            }
+            page.setData(pos.pagePos, updated);
+            markDirty(page);
+        } finally {
+            page.latch.writeLock().unlock();
+            unpin(page);
+        }
         return 0;
     }
 
-    public TRecord getRecordFromOverflow(TRecord.NextRecordPos next) throws IOException {
-        if (!next.exists()) return null;
-        TRecordPage op = getPage(next.pageNum);
-        return op.getRecordFromPos(next.pagePos);
+    // Marks the record as deleted and unlinks it from the chain of `rootPage` record at `rootPos`, its slot is
+    // reused by later inserts. `rootPage` is a primary page, latched and marked as dirty by the caller.
+    public int deleteRecord(TRecordPage rootPage, int rootPos, int key) throws IOException {
+        TRecordPage prevPage = null;
+        int prevPos = rootPos;
+        int pageNum = rootPage.nextPageAt(rootPos);
+        int pagePos = rootPage.nextPosAt(rootPos);
+        try {
+            while (pageNum != -1 && pagePos != -1) {
+                TRecordPage page = getPinnedPage(pageNum);
+                if (page.keyAt(pagePos) == key) {
+                    try {
+                        if (page.isDeleted(pagePos)) {
+                            return -1;
+                        }
+                        unlink(rootPage, prevPage, prevPos, page, pagePos);
+                    } finally {
+                        unpin(page);
+                    }
+                    addFreeSlot(cluster(rootPage.pageNum), new TRecord.NextRecordPos(pagePos, pageNum));
+                    fileDeletedAmount++;
+                    return 0;
+                }
+                if (prevPage != null) {
+                    unpin(prevPage);
+                }
+                prevPage = page;
+                prevPos = pagePos;
+                pageNum = page.nextPageAt(pagePos);
+                pagePos = page.nextPosAt(pagePos);
+            }
+        } finally {
+            if (prevPage != null) {
+                unpin(prevPage);
+            }
+        }
+        return -1;
     }
 
-    public TRecord.NextRecordPos getLastAvailablePos() {
-        TRecord.NextRecordPos nrp = new TRecord.NextRecordPos();
-        nrp.pageNum = fileInsertedAmount / pageSize;
-        nrp.pagePos = fileInsertedAmount % pageSize;
-        return nrp;
+    // Record is marked as deleted first and keeps its link, so readers already on it continue with the chain
+    private void unlink(TRecordPage rootPage, TRecordPage prevPage, int prevPos, TRecordPage page, int pagePos) {
+        int nextPageNum = page.nextPageAt(pagePos);
+        int nextPagePos = page.nextPosAt(pagePos);
+        page.latch.writeLock().lock();
+        try {
+            page.setDeleted(pagePos);
+            markDirty(page);
+        } finally {
+            page.latch.writeLock().unlock();
+        }
+        if (prevPage == null) {
+            rootPage.setNext(prevPos, nextPageNum, nextPagePos);
+            return;
+        }
+        prevPage.latch.writeLock().lock();
+        try {
+            prevPage.setNext(prevPos, nextPageNum, nextPagePos);
+            markDirty(prevPage);
+        } finally {
+            prevPage.latch.writeLock().unlock();
+        }
+    }
+
+    private int cluster(int rootPageNum) {
+        return clusterPages == 0 ? 0 : rootPageNum / clusterPages;
+    }
+
+    private void addFreeSlot(int cluster, TRecord.NextRecordPos slot) {
+        invalidateSavedFreeSlots();
+        pendingSlots.computeIfAbsent(cluster, c -> new ArrayDeque<>()).add(slot);
+        freeSlotAmount++;
+    }
+
+    // Returns free slot of `cluster` or null. Pending and detached slots become free once no reader walks a chain,
+    // readers starting later read links set after the slots were unlinked.
+    private TRecord.NextRecordPos takeFreeSlot(int cluster) throws IOException {
+        if (freeSlotAmount == 0 && detachedSlots.isEmpty()) {
+            return null;
+        }
+        ArrayDeque<TRecord.NextRecordPos> free = freeSlots.get(cluster);
+        if ((free == null || free.isEmpty()) && (!pendingSlots.isEmpty() || !detachedSlots.isEmpty()) && chainWalkers.get() == 0) {
+            pendingSlots.forEach((c, slots) -> freeSlots.computeIfAbsent(c, x -> new ArrayDeque<>()).addAll(slots));
+            pendingSlots.clear();
+            freeDetached();
+            free = freeSlots.get(cluster);
+        }
+        if (free == null || free.isEmpty()) {
+            return null;
+        }
+        invalidateSavedFreeSlots();
+        freeSlotAmount--;
+        return free.poll();
+    }
+
+    // Chain of a record on primary page `rootPageNum` at `slots` is no longer linked from it, its live records were
+    // moved to primary pages. `deleted` of them were marked as deleted already. Slots are freed by `freeDetached()`.
+    public void detach(int rootPageNum, List<TRecord.NextRecordPos> slots, int deleted) {
+        if (slots.isEmpty()) {
+            return;
+        }
+        detachedSlots.computeIfAbsent(cluster(rootPageNum), c -> new ArrayDeque<>()).addAll(slots);
+        detachedAmount += slots.size();
+        fileDeletedAmount -= deleted;
+    }
+
+    // Marks records of detached chains as deleted and frees their slots, so reorganization can read the file
+    // without following chains again. No reader may be on a chain, the writer calls it under the exclusive lock
+    // or when no chain walk is in progress.
+    public void freeDetached() throws IOException {
+        if (detachedSlots.isEmpty()) {
+            return;
+        }
+        invalidateSavedFreeSlots();
+        for (var e : detachedSlots.entrySet()) {
+            for (TRecord.NextRecordPos slot : e.getValue()) {
+                TRecordPage page = getPinnedPage(slot.pageNum);
+                page.latch.writeLock().lock();
+                try {
+                    page.setDeleted(slot.pagePos);
+                    markDirty(page);
+                } finally {
+                    page.latch.writeLock().unlock();
+                    unpin(page);
+                }
+            }
+            freeSlots.computeIfAbsent(e.getKey(), c -> new ArrayDeque<>()).addAll(e.getValue());
+            freeSlotAmount += e.getValue().size();
+            detachedAmount -= e.getValue().size();
+            fileDeletedAmount += e.getValue().size();
+        }
+        detachedSlots.clear();
+    }
+
+    // Unlinked slots waiting for reuse (pending ones included)
+    public int freeSlotAmount() {
+        return freeSlotAmount;
+    }
+
+    private void invalidateSavedFreeSlots() {
+        if (freeSlotsSavedAs != null) {
+            new File(freeSlotsSavedAs).delete();
+            freeSlotsSavedAs = null;
+        }
+    }
+
+    // Pending slots are saved as free ones, no reader of this instance survives reopening the file
+    public void saveFreeSlots(String filename) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+            out.writeInt(FREE_SLOTS_MAGIC);
+            out.writeInt(pageAmount);
+            out.writeInt(fileInsertedAmount);
+            out.writeInt(fileDeletedAmount);
+            out.writeInt(freeSlotAmount);
+            for (HashMap<Integer, ArrayDeque<TRecord.NextRecordPos>> slots : Arrays.asList(freeSlots, pendingSlots)) {
+                for (var e : slots.entrySet()) {
+                    for (TRecord.NextRecordPos slot : e.getValue()) {
+                        out.writeInt(e.getKey());
+                        out.writeInt(slot.pageNum);
+                        out.writeInt(slot.pagePos);
+                    }
+                }
+            }
+        }
+        freeSlotsSavedAs = filename;
+    }
+
+    // Slots saved for other state of the file are not loaded, they stay unused until reorganization
+    public void loadFreeSlots(String filename) throws IOException {
+        File f = new File(filename);
+        if (!f.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != FREE_SLOTS_MAGIC || in.readInt() != pageAmount || in.readInt() != fileInsertedAmount
+                || in.readInt() != fileDeletedAmount) {
+                return;
+            }
+            int amount = in.readInt();
+            HashMap<Integer, ArrayDeque<TRecord.NextRecordPos>> loaded = new HashMap<>();
+            for (int i = 0; i < amount; i++) {
+                int cluster = in.readInt();
+                int pageNum = in.readInt();
+                int pagePos = in.readInt();
+                loaded.computeIfAbsent(cluster, c -> new ArrayDeque<>()).add(new TRecord.NextRecordPos(pagePos, pageNum));
+            }
+            freeSlots.clear();
+            pendingSlots.clear();
+            freeSlots.putAll(loaded);
+            freeSlotAmount = amount;
+            freeSlotsSavedAs = filename;
+        } catch (EOFException e) {
+            // Truncated copy is as good as none
+        }
+    }
+
+    // Walks several chains at once, every step reads each overflow page once for all chains continuing on it.
+    // Records of chain `i` are appended to `out.get(i)`, `pageNums` and `pagePos` are consumed.
+    public void readChains(int[] pageNums, int[] pagePos, ArrayList<ArrayList<TRecord>> out) throws IOException {
+        long[] active = new long[pageNums.length];
+        while (true) {
+            int activeAmount = 0;
+            for (int i = 0; i < pageNums.length; i++) {
+                if (pageNums[i] != -1 && pagePos[i] != -1) {
+                    // Page number in upper half, so chains on the same page end up next to each other
+                    active[activeAmount++] = ((long) pageNums[i] << 32) | i;
+                }
+            }
+            if (activeAmount == 0) {
+                return;
+            }
+            Arrays.sort(active, 0, activeAmount);
+
+            TRecordPage page = null;
+            try {
+                for (int a = 0; a < activeAmount; a++) {
+                    int i = (int) active[a];
+                    if (page == null || page.pageNum != pageNums[i]) {
+                        if (page != null) {
+                            page.latch.readLock().unlock();
+                            unpin(page);
+                            page = null;
+                        }
+                        TRecordPage next = getPinnedPage(pageNums[i]);
+                        next.latch.readLock().lock();
+                        page = next;
+                    }
+                    int pos = pagePos[i];
+                    out.get(i).add(page.getRecordFromPos(pos));
+                    pageNums[i] = page.nextPageAt(pos);
+                    pagePos[i] = page.nextPosAt(pos);
+                }
+            } finally {
+                if (page != null) {
+                    page.latch.readLock().unlock();
+                    unpin(page);
+                }
+            }
+        }
+    }
+
+    public TRecord getRecordFromOverflow(TRecord.NextRecordPos next) throws IOException {
+        if (!next.exists()) return null;
+        TRecordPage op = getPinnedPage(next.pageNum);
+        op.latch.readLock().lock();
+        try {
+            return op.getRecordFromPos(next.pagePos);
+        } finally {
+            op.latch.readLock().unlock();
+            unpin(op);
+        }
     }
 }
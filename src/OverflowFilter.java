@@ -0,0 +1,136 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Bloom filter per primary page over keys of its overflow chains, kept in memory. Lookup of a key that is not
+// on the primary page skips the chain walk when the filter of the page has never seen the key.
+// Keys are only added (deletions leave them in), the filters start empty again with rebuilt pages.
+public class OverflowFilter {
+    private static final int FILE_MAGIC = 0x49534246; // "ISBF"
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 3;
+
+    // Sized for as many chained keys as a primary page holds, more of them only raise false positives
+    final int wordsPerPage;
+    // Filters of page `n` are words from `n * wordsPerPage`. Bits of a page change under its write latch,
+    // the array is replaced only by the single writer, so readers of other pages see the same bits in either copy.
+    private volatile long[] words;
+    // Filters of files opened without a valid saved copy are unknown, every chain has to be walked then
+    private volatile boolean complete;
+    // Saved copy stops describing the chains with the first change, it is deleted then
+    private String savedAs;
+
+    // Chain walks skipped because of the filter, and walks it allowed that did not find the key
+    final AtomicInteger skippedWalks = new AtomicInteger();
+    final AtomicInteger falsePositives = new AtomicInteger();
+
+    public OverflowFilter(int pageSize) {
+        this.wordsPerPage = Math.max(1, (pageSize * BITS_PER_KEY + Long.SIZE - 1) / Long.SIZE);
+        this.words = new long[0];
+        this.complete = true;
+    }
+
+    public boolean mightContain(int pageNum, int key) {
+        if (!complete) {
+            return true;
+        }
+        long[] w = words;
+        if ((long) pageNum * wordsPerPage >= w.length) {
+            return false;
+        }
+        long h = mix(key);
+        int bits = wordsPerPage * Long.SIZE;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = Math.floorMod((int) h + i * (int) (h >>> 32), bits);
+            if ((w[pageNum * wordsPerPage + bit / Long.SIZE] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void add(int pageNum, int key) {
+        invalidateSaved();
+        int end = (pageNum + 1) * wordsPerPage;
+        if (end > words.length) {
+            words = Arrays.copyOf(words, Math.max(end, words.length * 2));
+        }
+        long h = mix(key);
+        int bits = wordsPerPage * Long.SIZE;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = Math.floorMod((int) h + i * (int) (h >>> 32), bits);
+            words[pageNum * wordsPerPage + bit / Long.SIZE] |= 1L << bit;
+        }
+    }
+
+    // Page was rewritten without overflow chains
+    public void clear(int pageNum) {
+        invalidateSaved();
+        if ((pageNum + 1) * wordsPerPage <= words.length) {
+            Arrays.fill(words, pageNum * wordsPerPage, (pageNum + 1) * wordsPerPage, 0);
+        }
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    private void invalidateSaved() {
+        if (savedAs != null) {
+            new File(savedAs).delete();
+            savedAs = null;
+        }
+    }
+
+    // `records` tells which files the filters describe, `load()` accepts only the same ones
+    public void save(String filename, TRecords records) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(wordsPerPage);
+            out.writeInt(records.pageAmount);
+            out.writeInt(records.overflow.pageAmount);
+            out.writeInt(records.overflow.fileInsertedAmount);
+            out.writeBoolean(complete);
+            long[] w = words;
+            int pages = Math.min(records.pageAmount, w.length / wordsPerPage);
+            out.writeInt(pages);
+            for (int i = 0; i < pages * wordsPerPage; i++) {
+                out.writeLong(w[i]);
+            }
+        }
+        savedAs = filename;
+    }
+
+    // Filters stay unknown (not complete) if there is no saved copy or it describes other files
+    public void load(String filename, TRecords records) throws IOException {
+        complete = false;
+        File f = new File(filename);
+        if (!f.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != wordsPerPage || in.readInt() != records.pageAmount
+                || in.readInt() != records.overflow.pageAmount || in.readInt() != records.overflow.fileInsertedAmount
+                || !in.readBoolean()) {
+                return;
+            }
+            long[] w = new long[in.readInt() * wordsPerPage];
+            for (int i = 0; i < w.length; i++) {
+                w[i] = in.readLong();
+            }
+            words = w;
+            complete = true;
+            savedAs = filename;
+        } catch (EOFException e) {
+            // Truncated copy is as good as none
+        }
+    }
+
+    private static long mix(int key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 29;
+        return h;
+    }
+}
@@ -1,4 +1,5 @@
-import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public abstract class Page<T extends Record> implements IDataSerializable {
     public int pageSize;
@@ -8,37 +9,34 @@ public abstract class Page<T extends Record> implements IDataSerializable {
     public int recordAmount;
     // end of Metadata ---
 
-    T[] data;
-
-    protected abstract T createRecordInstance();
-    protected abstract T[] createRecordArray();
-
+    // Shared by readers of the page, exclusive for its writer. Page has to be pinned while it is latched.
+    public final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
     public Page(int pageSize) {
         this.pageSize = pageSize;
         this.pageNum = 0;
         this.recordAmount = 0;
-        this.data = createRecordArray();
     }
 
     @Override
-    public void serializeData(DataOutputStream dos) throws IOException {
-        dos.writeInt(pageNum);
-        dos.writeInt(recordAmount);
-        serializeBody(dos);
+    public void serializeData(ByteBuffer buffer) {
+        buffer.putInt(pageNum);
+        buffer.putInt(recordAmount);
+        serializeBody(buffer);
     }
 
     @Override
-    public void deserializeData(DataInputStream dis) throws IOException {
-        pageNum = dis.readInt();
+    public void deserializeData(ByteBuffer buffer) {
+        pageNum = buffer.getInt();
         if (pageNum == -1) pageNum = 0;
-        recordAmount = dis.readInt();
+        recordAmount = buffer.getInt();
         if (recordAmount == -1) recordAmount = 0;
-        deserializeBody(dis);
+        deserializeBody(buffer);
     }
 
-    protected abstract void serializeBody(DataOutputStream dos) throws IOException;
-    protected abstract void deserializeBody(DataInputStream dis) throws IOException;
+    protected abstract void serializeBody(ByteBuffer buffer);
+    // Page instance is reused, so existing records are overwritten in place
+    protected abstract void deserializeBody(ByteBuffer buffer);
 
     protected abstract int insert(T record);
     protected abstract int delete(int key);
@@ -49,19 +47,9 @@ public abstract class Page<T extends Record> implements IDataSerializable {
 
     protected abstract T getRecord(int key);
 
-    protected T getRecordFromPos(int pos) {
-        if  (pos < 0 || pos >= data.length) {
-            return null;
-        }
-        return data[pos];
-    }
+    protected abstract T getRecordFromPos(int pos);
 
-    protected int getPosFromRecord(TRecord record) {
-        for (int i = 0; i < recordAmount; i++) {
-            if (record.key == data[i].key) return i;
-        }
-        return -1;
-    }
+    public abstract boolean isDeleted(int pos);
 
     public int getSizeBytes() {
         int size = 0;
@@ -87,7 +75,7 @@ public abstract class Page<T extends Record> implements IDataSerializable {
     public boolean isAvailable() {
         if (!isFull()) return true;
         for (int i = 0; i < pageSize; i++) {
-            if (data[i].deleted)
+            if (isDeleted(i))
                 return true;
         }
         return false;
@@ -96,7 +84,7 @@ public abstract class Page<T extends Record> implements IDataSerializable {
 
     public void print(boolean cached) {
         for (int i = 0; i < pageSize; i++) {
-            T r = data[i];
+            T r = getRecordFromPos(i);
             System.out.print("[" + pageNum + ":");
             System.out.print(i + "] >> ");
             System.out.println(r);
@@ -105,7 +93,7 @@ public abstract class Page<T extends Record> implements IDataSerializable {
 
     public void print() {
         for (int i = 0; i < pageSize; i++) {
-            T r = data[i];
+            T r = getRecordFromPos(i);
             System.out.print("[" + pageNum + ":");
             System.out.print(i + "] ");
             System.out.println(r);
@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+
+// Splits a full primary page instead of growing an overflow chain past `maxChainLength`, like a B+-tree leaf.
+// Live records of the page and its chains (with the new record) are spread over the page and new pages appended
+// to the file, every new page gets an index entry. Key order of the pages is kept by `TRecords` from then on.
+public class PageSplitter {
+    final Index index;
+    final TRecords records;
+    final int maxChainLength;
+
+    public PageSplitter(Index index, TRecords records, int maxChainLength) {
+        this.index = index;
+        this.records = records;
+        this.maxChainLength = maxChainLength;
+    }
+
+    // New entries are inserted into a sorted index without levels, with exactly one entry per primary page
+    public boolean isApplicable() {
+        return maxChainLength > 0 && records.pageAmount > 0 && !index.hasLevels() && index.isSorted()
+            && index.entryAmount() == records.pageAmount;
+    }
+
+    // Returns false (and changes nothing) if `record` goes to page `pageNum` without making a chain too long
+    public boolean insertBySplit(int pageNum, TRecord record) throws IOException {
+        TRecordPage trp = records.latchForWrite(pageNum);
+        try {
+            if (!trp.isFull() || trp.reclaimablePos(record.key) != -1) {
+                return false;
+            }
+            int rootPos = trp.findPreviousPos(record.key);
+            // Keys after the last page go to a new page anyway
+            if (rootPos != -1 && records.isLastInKeyOrder(pageNum) && trp.keyAt(trp.recordAmount - 1) == trp.keyAt(rootPos)
+                && !trp.hasNext(rootPos)) {
+                return false;
+            }
+            // Smaller keys than any on the first page push its first record into the chain of position 0
+            if (chainLength(trp, Math.max(rootPos, 0)) < maxChainLength) {
+                return false;
+            }
+            split(trp, record);
+            return true;
+        } finally {
+            records.release(trp);
+        }
+    }
+
+    private int chainLength(TRecordPage trp, int pos) throws IOException {
+        TRecord.NextRecordPos next = new TRecord.NextRecordPos();
+        next.pageNum = trp.nextPageAt(pos);
+        next.pagePos = trp.nextPosAt(pos);
+        int length = 0;
+        while (next.exists()) {
+            TRecord o = records.overflow.getRecordFromOverflow(next);
+            next.pageNum = o.next.pageNum;
+            next.pagePos = o.next.pagePos;
+            length++;
+        }
+        return length;
+    }
+
+    private void split(TRecordPage trp, TRecord record) throws IOException {
+        ArrayList<TRecord> live = new ArrayList<>();
+        int primaryDeleted = 0;
+        int chainedDeleted = 0;
+        ArrayList<TRecord.NextRecordPos> chainSlots = new ArrayList<>();
+        TRecord.NextRecordPos pos = new TRecord.NextRecordPos();
+        for (int i = 0; i < trp.recordAmount; i++) {
+            TRecord r = trp.getRecordFromPos(i);
+            // Deleted first record stays, its key is in the index
+            if (r.deleted && i > 0) {
+                primaryDeleted++;
+            } else {
+                live.add(r);
+            }
+            pos.pageNum = r.next.pageNum;
+            pos.pagePos = r.next.pagePos;
+            while (pos.exists()) {
+                chainSlots.add(new TRecord.NextRecordPos(pos.pagePos, pos.pageNum));
+                TRecord o = records.overflow.getRecordFromOverflow(pos);
+                pos.pageNum = o.next.pageNum;
+                pos.pagePos = o.next.pagePos;
+                if (o.deleted) {
+                    chainedDeleted++;
+                } else {
+                    live.add(o);
+                }
+            }
+        }
+        live.add(record);
+        live.sort(Comparator.comparingInt(r -> r.key));
+
+        // Chains are left as they are, readers already walking them still find their keys.
+        // Their slots are freed once no reader walks a chain.
+        records.fileInsertedAmount += live.size() - trp.recordAmount;
+        records.fileDeletedAmount -= primaryDeleted;
+        records.overflow.detach(trp.pageNum, chainSlots, chainedDeleted);
+
+        // Split pages are about half full, more pages only when the chains held more than two pages worth
+        int pages = Math.max(2, (live.size() + records.pageSize - 1) / records.pageSize);
+        int next = 0;
+        int prevPageNum = trp.pageNum;
+        for (int i = 0; i < pages; i++) {
+            int amount = live.size() / pages + (i < live.size() % pages ? 1 : 0);
+            TRecordPage page = i == 0 ? trp : records.getPinnedNewPage();
+            if (i > 0) {
+                page.latch.writeLock().lock();
+            }
+            try {
+                page.recordAmount = 0;
+                for (int j = 0; j < amount; j++) {
+                    TRecord r = live.get(next++);
+                    r.next.reset();
+                    page.insert(r);
+                }
+                records.markDirty(page);
+                records.clearDamage(page.pageNum);
+                records.filter.clear(page.pageNum);
+                if (i > 0) {
+                    // Readers find the new page through the index or the link before the split page is released
+                    records.linkAfter(prevPageNum, page.pageNum);
+                    index.insertSorted(new IndexRecord(page.keyAt(0), page.pageNum));
+                    prevPageNum = page.pageNum;
+                }
+            } finally {
+                if (i > 0) {
+                    records.release(page);
+                }
+            }
+        }
+        records.splitCount++;
+    }
+}
@@ -1,36 +1,65 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 
-public abstract class PagedFile<T extends Page> {
+public abstract class PagedFile<T extends Page<?>> {
+    public static final int DEFAULT_BUFFER_FRAMES = 8;
+    public static final long PIN_WAIT_MILLIS = 10_000;
+
+    // Every file starts with a header, pages are stored right after it
+    public static final int HEADER_BYTES = 512;
+    public static final int HEADER_MAGIC = 0x4953414D; // "ISAM"
+    public static final int FORMAT_VERSION = 2;
+
     public String filename;
-    public RandomAccessFile raf;
+    public IPageStorage storage;
     public int pageSize;
 
     public int pageReadCount;
     public int pageWriteCount;
+    public int cacheHitCount;
+    public int cacheMissCount;
 
-    public T cachedPage;
+    BufferPool<T> bufferPool;
+
+    // Reused for every read and write, so page I/O does not allocate
+    private byte[] pageBytes;
+    private ByteBuffer pageBuffer;
+    // Instance left by a read past the end of the file, reused by the next allocation
+    private T sparePage;
+    private byte[] prefetchBytes;
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_BYTES);
+    // Header on disk says pages were written after it, set by the first page write after `writeCachedPages()`
+    private boolean markedDirty;
 
     int pageAmount;
     int fileInsertedAmount;
     int fileDeletedAmount;
 
-    public PagedFile(String filename, int pageSize) throws FileNotFoundException {
+    public PagedFile(String filename, int pageSize) throws IOException {
+        this(filename, pageSize, DEFAULT_BUFFER_FRAMES, IPageStorage.Mode.RANDOM_ACCESS);
+    }
+
+    public PagedFile(String filename, int pageSize, int bufferFrames, IPageStorage.Mode storageMode) throws IOException {
         this.filename = filename;
-        raf = new RandomAccessFile(filename, "rw");
+        storage = IPageStorage.open(filename, storageMode);
 
         this.pageSize = pageSize;
 
         this.pageReadCount = 0;
         this.pageWriteCount = 0;
-        this.cachedPage = null;
+        this.cacheHitCount = 0;
+        this.cacheMissCount = 0;
+        this.bufferPool = new BufferPool<>(bufferFrames);
 
-        this.pageAmount = 0; // TODO: If we want to save all states, this should be changed
+        // Restored by `readHeader()` for files that are opened again
+        this.pageAmount = 0;
     }
 
     protected abstract T createPageInstance();
 
-    public T getPage(int n) throws IOException {
+    private T getPage(int n) throws IOException {
         T page = readPage(n);
         if (page == null) {
             return getNewPage();
@@ -38,87 +67,471 @@ public abstract class PagedFile<T extends Page> {
         return page;
     }
 
-    public T readPage(int n) throws IOException {
-        if (cachedPage != null && n == cachedPage.pageNum) {
-            return cachedPage;
+    private T readPage(int n) throws IOException {
+        T cached = bufferPool.get(n);
+        if (cached != null) {
+            cacheHitCount++;
+            return cached;
         }
-        writeCachedPage();
-
-        T p = createPageInstance();
+        T p = allocatePage();
+        // Monitor is released while waiting for a frame, other thread could have read the page meanwhile
+        cached = bufferPool.get(n);
+        if (cached != null) {
+            sparePage = p;
+            cacheHitCount++;
+            return cached;
+        }
+        cacheMissCount++;
 
-        byte[] b = new byte[p.getSizeBytes()];
+        IsamEvents.PageRead event = new IsamEvents.PageRead();
+        event.begin();
+        byte[] b = getPageBytes(p);
         Arrays.fill(b, (byte) -1);
+        int read;
         if (n <= pageAmount) {
-            raf.seek((long) p.getSizeBytes() * n);
+            read = storage.read(pageOffset(n, b.length), b);
         } else {
-            raf.seek((long) p.getSizeBytes() * pageAmount);
+            read = storage.read(pageOffset(pageAmount, b.length), b);
+        }
+        if (read == -1) {
+            sparePage = p;
+            return null;
         }
-        int read = raf.read(b);
-        if (read == -1) return null;
 
-        p.deserialize(b);
-        cachedPage = p;
+        p.deserialize(pageBuffer);
+        bufferPool.put(p, false);
 
         pageReadCount++;
+        if (event.shouldCommit()) {
+            event.file = filename;
+            event.pageNum = n;
+            event.pages = 1;
+            event.commit();
+        }
         return p;
     }
 
-    public void writeCachedPage() throws IOException {
-        if (cachedPage == null) {
-           return;
+    // Reads up to `amount` consecutive pages starting with `first` in a single storage read.
+    // Nothing is read if page `first` is cached, other pages already in the pool are kept.
+    // At least `BufferPool.MIN_FRAMES` frames are left for others.
+    public synchronized void prefetch(int first, int amount) throws IOException {
+        amount = Math.min(amount, Math.min(pageAmount - first, bufferPool.capacity() - BufferPool.MIN_FRAMES));
+        // Cached first page means the run was read ahead already
+        if (amount <= 1 || bufferPool.peek(first) != null) {
+            return;
         }
 
-        byte[] b = cachedPage.serialize();
-        raf.seek((long) cachedPage.getSizeBytes() * cachedPage.pageNum);
-        raf.write(b);
+        // Frames are freed before the read, evicted dirty pages of the range have to be on disk already
+        ArrayList<T> free = new ArrayList<>(amount);
+        for (int i = 0; i < amount; i++) {
+            if (bufferPool.peek(first + i) == null) {
+                // Read ahead is optional, it never waits for frames pinned by others
+                if (sparePage == null && bufferPool.size() + free.size() >= bufferPool.capacity() && !bufferPool.hasUnpinned()) {
+                    break;
+                }
+                free.add(allocatePage(free.size()));
+            }
+        }
+        if (free.isEmpty()) {
+            return;
+        }
+
+        int size = getPageBytes(free.getFirst()).length;
+        if (prefetchBytes == null || prefetchBytes.length != size * amount) {
+            prefetchBytes = new byte[size * amount];
+        }
+        IsamEvents.PageRead event = new IsamEvents.PageRead();
+        event.begin();
+        int read = storage.read(pageOffset(first, size), prefetchBytes);
+        int before = pageReadCount;
+        ByteBuffer runBuffer = ByteBuffer.wrap(prefetchBytes);
+        for (int i = 0; i < read / size && !free.isEmpty(); i++) {
+            if (bufferPool.peek(first + i) != null) {
+                continue;
+            }
+            T p = free.removeLast();
+            p.deserialize(runBuffer.slice(i * size, size));
+            bufferPool.put(p, false);
+            cacheMissCount++;
+            pageReadCount++;
+        }
+        if (event.shouldCommit()) {
+            event.file = filename;
+            event.pageNum = first;
+            event.pages = pageReadCount - before;
+            event.commit();
+        }
+        if (!free.isEmpty()) {
+            sparePage = free.getLast();
+        }
+    }
+
+    // Reads `amount` consecutive pages starting with `first` into new instances that are not cached, so parts of
+    // the file can be processed by several threads. Cached pages are copied, changes not written yet are included.
+    public ArrayList<T> readRun(int first, int amount) throws IOException {
+        amount = Math.max(0, Math.min(amount, pageAmount - first));
+        ArrayList<T> pages = new ArrayList<>(amount);
+        if (amount == 0) {
+            return pages;
+        }
+        T page = createPageInstance();
+        int size = page.getSizeBytes();
+        byte[] run = new byte[size * amount];
+        ByteBuffer runBuffer = ByteBuffer.wrap(run);
+        IsamEvents.PageRead event = new IsamEvents.PageRead();
+        event.begin();
+        synchronized (this) {
+            Arrays.fill(run, (byte) -1);
+            storage.read(pageOffset(first, size), run);
+            for (int i = 0; i < amount; i++) {
+                T cached = bufferPool.peek(first + i);
+                if (cached != null) {
+                    cached.serialize(runBuffer.slice(i * size, size));
+                    cacheHitCount++;
+                } else {
+                    cacheMissCount++;
+                    pageReadCount++;
+                }
+            }
+        }
+        if (event.shouldCommit()) {
+            event.file = filename;
+            event.pageNum = first;
+            event.pages = amount;
+            event.commit();
+        }
+        for (int i = 0; i < amount; i++) {
+            if (i > 0) {
+                page = createPageInstance();
+            }
+            page.deserialize(runBuffer.slice(i * size, size));
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    // Writes consecutive pages (numbered from `first`) with a single write, bypassing the buffer pool.
+    // None of the pages can be cached, file grows to hold them.
+    public void writeRun(int first, ArrayList<T> pages) throws IOException {
+        if (pages.isEmpty()) {
+            return;
+        }
+        int size = pages.getFirst().getSizeBytes();
+        byte[] run = new byte[size * pages.size()];
+        ByteBuffer runBuffer = ByteBuffer.wrap(run);
+        for (int i = 0; i < pages.size(); i++) {
+            pages.get(i).pageNum = first + i;
+            pages.get(i).serialize(runBuffer.slice(i * size, size));
+        }
+        synchronized (this) {
+            for (int i = 0; i < pages.size(); i++) {
+                if (bufferPool.peek(first + i) != null) {
+                    throw new IllegalStateException("Page " + (first + i) + " is cached, it cannot be written directly");
+                }
+            }
+            IsamEvents.PageWrite event = new IsamEvents.PageWrite();
+            event.begin();
+            markFileDirty();
+            storage.write(pageOffset(first, size), run);
+            pageWriteCount += pages.size();
+            pageAmount = Math.max(pageAmount, first + pages.size());
+            if (event.shouldCommit()) {
+                event.file = filename;
+                event.pageNum = first;
+                event.pages = pages.size();
+                event.commit();
+            }
+        }
+    }
+
+    // Returns instance of evicted page (or spare one) to be overwritten, new instance is created only while pool fills up
+    private T allocatePage() throws IOException {
+        return allocatePage(0);
+    }
+
+    // `reserved` is amount of frames promised to instances allocated before, but not put into the pool yet
+    private T allocatePage(int reserved) throws IOException {
+        if (sparePage != null) {
+            T p = sparePage;
+            sparePage = null;
+            return p;
+        }
+        if (bufferPool.size() + reserved < bufferPool.capacity()) {
+            return createPageInstance();
+        }
+        waitForUnpinned();
+        T victim = bufferPool.victim();
+        // Duration of the event includes the write of a dirty victim
+        IsamEvents.PageEviction event = new IsamEvents.PageEviction();
+        event.begin();
+        boolean dirty = bufferPool.isDirty(victim.pageNum);
+        if (dirty) {
+            writePage(victim);
+        }
+        bufferPool.remove(victim.pageNum);
+        if (event.shouldCommit()) {
+            event.file = filename;
+            event.pageNum = victim.pageNum;
+            event.dirty = dirty;
+            event.commit();
+        }
+        return victim;
+    }
+
+    // Frames pinned by other threads get released, so allocation waits for them instead of failing right away
+    private void waitForUnpinned() throws IOException {
+        long deadline = System.currentTimeMillis() + PIN_WAIT_MILLIS;
+        while (!bufferPool.hasUnpinned()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new IllegalStateException("All buffer frames are pinned");
+            }
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a buffer frame");
+            }
+        }
+    }
+
+    private byte[] getPageBytes(T page) {
+        if (pageBytes == null) {
+            pageBytes = new byte[page.getSizeBytes()];
+            pageBuffer = ByteBuffer.wrap(pageBytes);
+        }
+        return pageBytes;
+    }
+
+    private static long pageOffset(int n, int pageBytes) {
+        return HEADER_BYTES + (long) pageBytes * n;
+    }
+
+    private void writePage(T page) throws IOException {
+        IsamEvents.PageWrite event = new IsamEvents.PageWrite();
+        event.begin();
+        byte[] b = getPageBytes(page);
+        page.serialize(pageBuffer);
+        markFileDirty();
+        storage.write(pageOffset(page.pageNum, b.length), b);
 
         pageWriteCount++;
+        if (event.shouldCommit()) {
+            event.file = filename;
+            event.pageNum = page.pageNum;
+            event.pages = 1;
+            event.commit();
+        }
     }
 
-    public T getNewPage() throws IOException {
-        writeCachedPage();
+    // Releases the file without writing cached pages, for files that were replaced or flushed
+    public synchronized void close() throws IOException {
+        storage.close();
+    }
 
-        T page = createPageInstance();
-        byte[] b = new byte[page.getSizeBytes()];
-        Arrays.fill(b, (byte) -1);
-        page.deserialize(b);
+    // Writes back every modified page, clean pages are never written.
+    // Header goes last, so it never describes pages that are not on disk yet.
+    public synchronized void writeCachedPages() throws IOException {
+        for (T page : bufferPool.takeDirtyPages()) {
+            writePage(page);
+        }
+        writeHeader(true);
+        markedDirty = false;
+    }
 
-        page.pageNum = pageAmount;
+    // Pages written without a header describing them leave the file unusable until the next flush,
+    // so a file whose writer crashed (or was not closed) is not opened with stale counts and free slots
+    private void markFileDirty() throws IOException {
+        if (!markedDirty) {
+            writeHeader(false);
+            markedDirty = true;
+        }
+    }
 
+    private void writeHeader(boolean clean) throws IOException {
+        headerBuffer.clear();
+        Arrays.fill(headerBuffer.array(), (byte) 0);
+        headerBuffer.putInt(HEADER_MAGIC);
+        headerBuffer.putInt(FORMAT_VERSION);
+        headerBuffer.putInt(pageSize);
+        headerBuffer.putInt(createPageInstance().getSizeBytes());
+        headerBuffer.putInt(pageAmount);
+        headerBuffer.putInt(fileInsertedAmount);
+        headerBuffer.putInt(fileDeletedAmount);
+        headerBuffer.putInt(clean ? 1 : 0);
+        serializeHeaderExtra(headerBuffer);
+        storage.write(0, headerBuffer.array());
+    }
+
+    // Restores state of a file written by `writeCachedPages()`, no page is read.
+    // Files changed after their last `writeCachedPages()` are refused.
+    public synchronized void readHeader() throws IOException {
+        headerBuffer.clear();
+        if (storage.read(0, headerBuffer.array()) != HEADER_BYTES) {
+            throw new IOException(filename + " has no header");
+        }
+        if (headerBuffer.getInt() != HEADER_MAGIC) {
+            throw new IOException(filename + " is not an ISAM file");
+        }
+        int version = headerBuffer.getInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException(filename + " has unsupported format version " + version);
+        }
+        int filePageSize = headerBuffer.getInt();
+        if (filePageSize != pageSize) {
+            throw new IOException(filename + " has page size " + filePageSize + ", expected " + pageSize);
+        }
+        int pageBytes = headerBuffer.getInt();
+        if (pageBytes != createPageInstance().getSizeBytes()) {
+            throw new IOException(filename + " holds different kind of pages");
+        }
+        int amount = headerBuffer.getInt();
+        int inserted = headerBuffer.getInt();
+        int deleted = headerBuffer.getInt();
+        if (headerBuffer.getInt() != 1) {
+            throw new IOException(filename + " was changed after it was last flushed");
+        }
+        pageAmount = amount;
+        fileInsertedAmount = inserted;
+        fileDeletedAmount = deleted;
+        deserializeHeaderExtra(headerBuffer);
+    }
+
+    // Used before any file object exists, to know with which page size it has to be created
+    public static int readPageSize(String filename) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(filename, "r")) {
+            if (raf.length() < HEADER_BYTES || raf.readInt() != HEADER_MAGIC) {
+                throw new IOException(filename + " is not an ISAM file");
+            }
+            raf.readInt(); // version, checked by `readHeader()`
+            return raf.readInt();
+        }
+    }
+
+    // File specific state, has to fit into the rest of the header
+    protected void serializeHeaderExtra(ByteBuffer buffer) {
+    }
+
+    protected void deserializeHeaderExtra(ByteBuffer buffer) throws IOException {
+    }
+
+    // Page has to be marked as dirty after any modification, otherwise it will be lost on eviction
+    public synchronized void markDirty(T page) {
+        if (bufferPool.peek(page.pageNum) != page) {
+            throw new IllegalStateException("Page " + page.pageNum + " was evicted before being marked as dirty");
+        }
+        bufferPool.markDirty(page.pageNum);
+    }
+
+    // Pinned page cannot be evicted, so references to its records stay valid
+    public synchronized void pin(T page) {
+        bufferPool.pin(page.pageNum);
+    }
+
+    public synchronized void unpin(T page) {
+        bufferPool.unpin(page.pageNum);
+        notifyAll();
+    }
+
+    // Pages are handed out pinned only. Instance of an evicted page is reused for another one, so a reference
+    // kept after `unpin()` (or taken without a pin) could silently read or change a different page.
+    public synchronized T getPinnedPage(int n) throws IOException {
+        T page = getPage(n);
+        pin(page);
+        return page;
+    }
+
+    // Returns null if page `n` is not in the file
+    public synchronized T readPinnedPage(int n) throws IOException {
+        T page = readPage(n);
+        if (page != null) {
+            pin(page);
+        }
+        return page;
+    }
+
+    // Page `n` without reading it from disk, for callers that overwrite the whole page
+    public synchronized T getPinnedBlankPage(int n) throws IOException {
+        T page = getBlankPage(n);
+        pin(page);
+        return page;
+    }
+
+    public synchronized T getPinnedNewPage() throws IOException {
+        T page = getNewPage();
+        pin(page);
+        return page;
+    }
+
+    public synchronized T getPinnedLastNonFullPage() throws IOException {
+        T page = getLastNonFullPage();
+        pin(page);
+        return page;
+    }
+
+    private T getNewPage() throws IOException {
+        IsamEvents.PageAllocation event = new IsamEvents.PageAllocation();
+        event.begin();
+        T page = getBlankPage(pageAmount);
         pageAmount++;
-        cachedPage = page;
+        if (event.shouldCommit()) {
+            event.file = filename;
+            event.pageNum = page.pageNum;
+            event.commit();
+        }
         return page;
     }
 
-    public T getLastNonFullPage() throws IOException {
+    private T getBlankPage(int n) throws IOException {
+        T cached = bufferPool.get(n);
+        if (cached != null) {
+            cacheHitCount++;
+            return cached;
+        }
+        T page = allocatePage();
+        cached = bufferPool.get(n);
+        if (cached != null) {
+            sparePage = page;
+            cacheHitCount++;
+            return cached;
+        }
+        byte[] b = getPageBytes(page);
+        Arrays.fill(b, (byte) -1);
+        page.deserialize(pageBuffer);
+        page.pageNum = n;
+        // Blank page does not exist on disk yet, so it has to be written at least once
+        bufferPool.put(page, true);
+        return page;
+    }
+
+    private T getLastNonFullPage() throws IOException {
         T page = getLastPage();
         if (page.isFull()) return getNewPage();
         return page;
     }
 
-    public T getLastPage() throws IOException {
+    private T getLastPage() throws IOException {
         if (pageAmount == 0) return getNewPage();
         return getPage(pageAmount - 1);
     }
 
-    public void print() throws IOException {
+    public synchronized void print() throws IOException {
         System.out.println("    " + filename);
         System.out.println("- Inserted records: " + fileInsertedAmount);
         System.out.println("- Deleted records:  " + fileDeletedAmount);
         T p = createPageInstance();
         for (int n = 0; n < pageAmount; n++) {
-            if (n == cachedPage.pageNum) {
-                cachedPage.print(true);
+            T cached = bufferPool.peek(n);
+            if (cached != null) {
+                cached.print(true);
                 continue;
             }
 
-            byte[] b = new byte[p.getSizeBytes()];
+            byte[] b = getPageBytes(p);
             Arrays.fill(b, (byte) -1);
-            raf.seek((long) p.getSizeBytes() * n);
-            int read = raf.read(b);
-            p.deserialize(b);
+            int read = storage.read(pageOffset(n, b.length), b);
+            p.deserialize(pageBuffer);
             p.print();
         }
     }
 }
-
@@ -0,0 +1,292 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Rebuilds the primary area with contiguous key ranges processed in parallel on a `ForkJoinPool`.
+// Overflow is read once sequentially and its live records are split into a bucket per range. Every range then
+// reads its primary pages and merges them with its sorted bucket. Merged segments are then written in parallel,
+// the pages get the same records as with `SequentialLoader`. Buckets and segments together keep about `runSize`
+// records in memory, the rest is spilled to temporary files (buckets as runs of `TRecordSorter`).
+public class ParallelReorganizer {
+    // Pages read or written with a single storage access
+    private static final int RUN_PAGES = 64;
+
+    // Merged records of a range in key order. First `memoryLimit` of them are kept in memory, the rest goes to a file.
+    private static class Segment {
+        final int memoryLimit;
+        final ArrayList<TRecord> memory = new ArrayList<>();
+        final ByteBuffer buffer = ByteBuffer.allocate(TRecord.SIZE_BYTES);
+        File file;
+        DataOutputStream out;
+        long size;
+
+        Segment(int memoryLimit) {
+            this.memoryLimit = memoryLimit;
+        }
+
+        void add(TRecord record) throws IOException {
+            if (memory.size() < memoryLimit) {
+                memory.add(record);
+            } else {
+                if (file == null) {
+                    file = File.createTempFile("isam_segment_", ".dat");
+                    file.deleteOnExit();
+                    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                }
+                record.serialize(buffer);
+                out.write(buffer.array());
+            }
+            size++;
+        }
+
+        void finish() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+
+        void delete() throws IOException {
+            finish();
+            if (file != null) {
+                file.delete();
+                file = null;
+            }
+        }
+    }
+
+    // Reads a segment from record `pos` on, every writer has its own readers
+    private static class SegmentReader implements Closeable {
+        final Segment segment;
+        final byte[] bytes = new byte[TRecord.SIZE_BYTES];
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        DataInputStream in;
+        long next;
+
+        SegmentReader(Segment segment, long pos) throws IOException {
+            this.segment = segment;
+            this.next = pos;
+            if (pos < segment.size && segment.file != null) {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+                in.skipNBytes(Math.max(0, pos - segment.memory.size()) * TRecord.SIZE_BYTES);
+            }
+        }
+
+        boolean hasNext() {
+            return next < segment.size;
+        }
+
+        TRecord next() throws IOException {
+            if (next < segment.memory.size()) {
+                return segment.memory.get((int) next++);
+            }
+            in.readFully(bytes);
+            TRecord r = new TRecord();
+            r.deserialize(buffer);
+            next++;
+            return r;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+
+    final TRecords source;
+    final Index index;
+    final TRecords target;
+    final int recordsPerPage;
+    final int threads;
+    final int runSize;
+
+    public ParallelReorganizer(TRecords source, Index index, TRecords target, double fillFactor, int threads, int runSize) {
+        this.source = source;
+        this.index = index;
+        this.target = target;
+        this.recordsPerPage = SequentialLoader.recordsPerPage(target.pageSize, fillFactor);
+        this.threads = threads;
+        this.runSize = runSize;
+    }
+
+    // Returns amount of records in the new files
+    public int run() throws IOException {
+        int pages = source.pageAmount;
+        if (pages == 0) {
+            return 0;
+        }
+        // More ranges than threads, so a range with long chains does not hold up the rest
+        int ranges = Math.min(pages, threads * 4);
+        int[] firstPage = new int[ranges + 1];
+        int[] firstKey = new int[ranges];
+        for (int r = 0; r <= ranges; r++) {
+            firstPage[r] = (int) ((long) pages * r / ranges);
+        }
+        for (int r = 0; r < ranges; r++) {
+            // Chains hold keys between their record and the next one, so ranges split at first keys of pages
+            if (r == 0) {
+                firstKey[r] = Integer.MIN_VALUE;
+                continue;
+            }
+            TRecordPage page = source.getPinnedPage(firstPage[r]);
+            firstKey[r] = page.keyAt(0);
+            source.unpin(page);
+        }
+
+        // Every bucket and every segment gets the same share of the memory
+        int share = Math.max(1, runSize / ranges / 2);
+        ArrayList<TRecordSorter.Runs> buckets = new ArrayList<>(ranges);
+        ArrayList<Segment> segments = new ArrayList<>(ranges);
+        for (int r = 0; r < ranges; r++) {
+            buckets.add(new TRecordSorter.Runs(share));
+            segments.add(new Segment(share));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            Iterator<TRecord> chained = new SequentialReader(source.overflow);
+            while (chained.hasNext()) {
+                TRecord record = chained.next();
+                int r = Arrays.binarySearch(firstKey, record.key);
+                buckets.get(r >= 0 ? r : -r - 2).add(record);
+            }
+
+            ArrayList<Callable<Segment>> merges = new ArrayList<>(ranges);
+            for (int r = 0; r < ranges; r++) {
+                int range = r;
+                merges.add(() -> merge(firstPage[range], firstPage[range + 1], buckets.get(range).sorted(), segments.get(range)));
+            }
+            invokeAll(pool, merges);
+
+            // Pages are laid out by position of their records in the whole file, like `SequentialLoader` does.
+            // A range writes pages starting within its segment, the last one can take records of following segments.
+            long[] segmentStart = new long[ranges + 1];
+            for (int r = 0; r < ranges; r++) {
+                segmentStart[r + 1] = segmentStart[r] + segments.get(r).size;
+            }
+            int total = (int) segmentStart[ranges];
+            ArrayList<Callable<int[]>> writes = new ArrayList<>(ranges);
+            for (int r = 0; r < ranges; r++) {
+                int fromPage = (int) ((segmentStart[r] + recordsPerPage - 1) / recordsPerPage);
+                int toPage = (int) ((segmentStart[r + 1] + recordsPerPage - 1) / recordsPerPage);
+                writes.add(() -> write(fromPage, toPage, segments, segmentStart));
+            }
+            ArrayList<int[]> firstKeys = invokeAll(pool, writes);
+
+            // Index is built in page order, it is only appended to
+            int pageNum = 0;
+            for (int[] keys : firstKeys) {
+                for (int key : keys) {
+                    index.insert(new IndexRecord(key, pageNum));
+                    if (pageNum == 0) {
+                        index.smallestKey = key;
+                    }
+                    pageNum++;
+                }
+            }
+            target.fileInsertedAmount = total;
+            return total;
+        } finally {
+            pool.shutdown();
+            for (Segment segment : segments) {
+                segment.delete();
+            }
+        }
+    }
+
+    // Live records of primary pages `from` to `to` (exclusive) merged with their chains (`bucket`, sorted),
+    // appended to `merged` in key order
+    private Segment merge(int from, int to, Iterator<TRecord> bucket, Segment merged) throws IOException {
+        TRecord chained = bucket.hasNext() ? bucket.next() : null;
+        for (int first = from; first < to; first += RUN_PAGES) {
+            for (TRecordPage page : source.readRun(first, Math.min(RUN_PAGES, to - first))) {
+                for (int i = 0; i < page.recordAmount; i++) {
+                    if (page.isDeleted(i)) {
+                        continue;
+                    }
+                    TRecord r = page.getRecordFromPos(i);
+                    while (chained != null && chained.key < r.key) {
+                        merged.add(chained);
+                        chained = bucket.hasNext() ? bucket.next() : null;
+                    }
+                    merged.add(r);
+                }
+            }
+        }
+        while (chained != null) {
+            merged.add(chained);
+            chained = bucket.hasNext() ? bucket.next() : null;
+        }
+        merged.finish();
+        return merged;
+    }
+
+    // Writes pages `fromPage` to `toPage` (exclusive) of the new primary area, returns their first keys
+    private int[] write(int fromPage, int toPage, ArrayList<Segment> segments, long[] segmentStart) throws IOException {
+        int[] firstKeys = new int[toPage - fromPage];
+        if (fromPage == toPage) {
+            return firstKeys;
+        }
+        long start = (long) fromPage * recordsPerPage;
+        int segment = Arrays.binarySearch(segmentStart, start);
+        segment = segment >= 0 ? segment : -segment - 2;
+        long total = segmentStart[segmentStart.length - 1];
+        ArrayList<TRecordPage> run = new ArrayList<>(RUN_PAGES);
+        SegmentReader records = new SegmentReader(segments.get(segment), start - segmentStart[segment]);
+        try {
+            for (int pageNum = fromPage; pageNum < toPage; pageNum++) {
+                TRecordPage page = new TRecordPage(target.pageSize);
+                long last = Math.min((long) (pageNum + 1) * recordsPerPage, total);
+                for (long i = (long) pageNum * recordsPerPage; i < last; i++) {
+                    // Empty segments share their start with the next one
+                    while (!records.hasNext()) {
+                        records.close();
+                        records = new SegmentReader(segments.get(++segment), 0);
+                    }
+                    TRecord r = records.next();
+                    r.next.reset();
+                    page.insert(r);
+                }
+                firstKeys[pageNum - fromPage] = page.keyAt(0);
+                run.add(page);
+                if (run.size() == RUN_PAGES || pageNum == toPage - 1) {
+                    target.writeRun(pageNum - run.size() + 1, run);
+                    run = new ArrayList<>(RUN_PAGES);
+                }
+            }
+        } finally {
+            records.close();
+        }
+        return firstKeys;
+    }
+
+    private static <T> ArrayList<T> invokeAll(ForkJoinPool pool, ArrayList<Callable<T>> tasks) throws IOException {
+        ArrayList<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> f : pool.invokeAll(tasks)) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException("Interrupted during reorganization");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IOException(e.getCause());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,33 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class RandomAccessPageStorage implements IPageStorage {
+    private final RandomAccessFile raf;
+
+    public RandomAccessPageStorage(String filename) throws FileNotFoundException {
+        raf = new RandomAccessFile(filename, "rw");
+    }
+
+    @Override
+    public int read(long pos, byte[] b) throws IOException {
+        raf.seek(pos);
+        return raf.read(b);
+    }
+
+    @Override
+    public void write(long pos, byte[] b) throws IOException {
+        raf.seek(pos);
+        raf.write(b);
+    }
+
+    @Override
+    public void setLength(long length) throws IOException {
+        raf.setLength(length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Measures throughput of concurrent `get()` calls for 1, 2, 4, ... threads up to the amount of cores.
+// Usage: java ReadScalingBenchmark [records] [pageSize] [bufferFrames] [seconds] [maxThreads]
+public class ReadScalingBenchmark {
+    public static void main(String[] args) throws Exception {
+        int recordAmount = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int bufferFrames = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        double seconds = args.length > 3 ? Double.parseDouble(args[3]) : 3;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int maxThreads = args.length > 4 ? Integer.parseInt(args[4]) : cores;
+
+        ISAM isam = new ISAM("bench_index.dat", "bench_records.dat", "bench_overflow.dat", pageSize, bufferFrames, IPageStorage.Mode.RANDOM_ACCESS);
+        isam.multiLevelIndex = true;
+        isam.recordOperationStats = false;
+        // Every other key is loaded, odd keys are inserted afterwards so reads also follow overflow chains
+        isam.bulkLoad(new Iterator<>() {
+            int key = 0;
+
+            @Override
+            public boolean hasNext() {
+                return key < recordAmount * 2;
+            }
+
+            @Override
+            public TRecord next() {
+                TRecord r = new TRecord(key, key, key, key);
+                key += 2;
+                return r;
+            }
+        });
+        for (int key = 1; key < recordAmount / 2; key += 20) {
+            isam.insert(new TRecord(key, key, key, key));
+        }
+        isam.flush();
+
+        System.out.println("Records: " + recordAmount + ", page size: " + pageSize + ", buffer frames: " + bufferFrames + ", cores: " + cores);
+        System.out.println("threads,ops/s,speedup");
+        double single = 0;
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            // Warm up, so the first measurement does not include JIT compilation
+            run(isam, threads, recordAmount * 2, 0.5);
+            double opsPerSecond = run(isam, threads, recordAmount * 2, seconds);
+            if (threads == 1) {
+                single = opsPerSecond;
+            }
+            System.out.printf("%d,%.0f,%.2f%n", threads, opsPerSecond, opsPerSecond / single);
+            if (threads >= maxThreads) {
+                break;
+            }
+        }
+        isam.cleanupFull();
+        isam.close();
+    }
+
+    private static double run(ISAM isam, int threads, int keyRange, double seconds) throws Exception {
+        AtomicLong operations = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> workers = new ArrayList<>();
+        ArrayList<Throwable> failures = new ArrayList<>();
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            Thread worker = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                TRecord dst = new TRecord();
+                long done = 0;
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline) {
+                        for (int i = 0; i < 256; i++) {
+                            isam.get(random.nextInt(keyRange), dst);
+                        }
+                        done += 256;
+                    }
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+                operations.addAndGet(done);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Reader failed", failures.getFirst());
+        }
+        return operations.get() / (elapsed / 1e9);
+    }
+}
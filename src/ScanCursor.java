@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Iterates not deleted records with keys from `fromKey` to `toKey` (both inclusive) in key order.
+// Every primary page is loaded together with overflow chains of its records, following primary pages
+// are read ahead with a single read. Pages are visited in key order, which differs from storage order after splits.
+// Pages are latched one at a time, so the cursor can run next to writers, but it is not a snapshot.
+// Reorganization that replaces the files (and `ISAM.cleanupFull()`) closes the ones the cursor reads; records loaded
+// before are still returned, then `hasNext()` throws `ConcurrentModificationException`. A new cursor can continue
+// after the last returned key.
+public class ScanCursor implements Iterator<TRecord> {
+    private final TRecords records;
+    private final int fromKey;
+    private final int toKey;
+
+    private int pageNum;
+    private boolean finished;
+    // Page split after it was loaded passes part of the loaded keys on to the following page
+    private long lastKey;
+    // Records of the current primary page and its chains, in key order
+    private final ArrayList<TRecord> batch;
+    private int batchPos;
+    private final ArrayList<ArrayList<TRecord>> chains;
+
+    public ScanCursor(TRecords records, int firstPage, int fromKey, int toKey) {
+        this.records = records;
+        this.fromKey = fromKey;
+        this.toKey = toKey;
+        this.pageNum = firstPage;
+        this.finished = fromKey > toKey;
+        this.lastKey = Long.MIN_VALUE;
+        this.batch = new ArrayList<>();
+        this.batchPos = 0;
+        this.chains = new ArrayList<>();
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (batchPos == batch.size() && !finished) {
+                checkOpen(null);
+                try {
+                    loadNextPage();
+                } catch (IOException | RuntimeException e) {
+                    // Files could be closed while the page was read
+                    checkOpen(e);
+                    throw e;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return batchPos < batch.size();
+    }
+
+    @Override
+    public TRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return batch.get(batchPos++);
+    }
+
+    private void checkOpen(Exception cause) {
+        if (records.closed) {
+            throw new ConcurrentModificationException("Files were replaced by reorganization while the cursor was open", cause);
+        }
+    }
+
+    private void loadNextPage() throws IOException {
+        batch.clear();
+        batchPos = 0;
+        if (pageNum == -1 || pageNum >= records.pageAmount) {
+            finished = true;
+            return;
+        }
+
+        records.prefetch(pageNum, records.bufferPool.capacity());
+        TRecordPage page = records.getPinnedPage(pageNum);
+        int n;
+        int[] chainPage;
+        int[] chainPos;
+        TRecord[] primary;
+        boolean walking = false;
+        // Primary page is copied out, so its latch is not held while the chains are read
+        page.latch.readLock().lock();
+        try {
+            n = page.recordAmount;
+            primary = new TRecord[n];
+            // Chain of record `i` holds keys between its key and the key of record `i + 1`
+            chainPage = new int[n];
+            chainPos = new int[n];
+            for (int i = 0; i < n; i++) {
+                primary[i] = page.getRecordFromPos(i);
+                boolean below = i + 1 < n && page.keyAt(i + 1) <= fromKey;
+                boolean above = page.keyAt(i) > toKey;
+                if (page.hasNext(i) && !below && !above) {
+                    chainPage[i] = page.nextPageAt(i);
+                    chainPos[i] = page.nextPosAt(i);
+                    walking = true;
+                } else {
+                    chainPage[i] = -1;
+                    chainPos[i] = -1;
+                }
+            }
+            // Slots unlinked from now on are not reused until the chains are read
+            if (walking) {
+                records.overflow.chainWalkers.incrementAndGet();
+            }
+        } finally {
+            page.latch.readLock().unlock();
+            records.unpin(page);
+        }
+
+        while (chains.size() < n) {
+            chains.add(new ArrayList<>());
+        }
+        for (int i = 0; i < n; i++) {
+            chains.get(i).clear();
+        }
+        if (walking) {
+            try {
+                records.overflow.readChains(chainPage, chainPos, chains);
+            } finally {
+                records.overflow.chainWalkers.decrementAndGet();
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (primary[i].key > toKey) {
+                finished = true;
+                break;
+            }
+            add(primary[i]);
+            for (TRecord r : chains.get(i)) {
+                add(r);
+            }
+        }
+        // Link is read after the page, so it leads to the page that took over its upper keys
+        pageNum = records.nextInKeyOrder(pageNum);
+    }
+
+    private void add(TRecord r) {
+        if (r.deleted || r.key < fromKey || r.key > toKey || r.key <= lastKey) {
+            return;
+        }
+        lastKey = r.key;
+        r.next.reset();
+        batch.add(r);
+    }
+}
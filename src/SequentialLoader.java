@@ -0,0 +1,47 @@
+import java.io.IOException;
+
+// Appends records in key order to empty files, used by reorganization and bulk load.
+// Every page gets `recordsPerPage` records and an index entry with its first key.
+public class SequentialLoader {
+    final Index index;
+    final TRecords records;
+    final int recordsPerPage;
+
+    int pageNum;
+    int loaded;
+
+    public SequentialLoader(Index index, TRecords records, double fillFactor) {
+        this.index = index;
+        this.records = records;
+        this.recordsPerPage = recordsPerPage(records.pageSize, fillFactor);
+        this.pageNum = 0;
+        this.loaded = 0;
+    }
+
+    public static int recordsPerPage(int pageSize, double fillFactor) {
+        return Math.max(1, Math.min(pageSize, (int) (pageSize * fillFactor)));
+    }
+
+    // `record` must not have smaller key than any record appended before, its overflow pointer is ignored
+    public void append(TRecord record) throws IOException {
+        boolean newPage = loaded != 0 && loaded % recordsPerPage == 0;
+        if (newPage) {
+            pageNum++;
+        }
+
+        record.next.reset();
+        int result = records.insert(record, pageNum);
+        if (result != 0 && result != 3) {
+            throw new IllegalStateException("Insertion required additional calls.");
+        }
+
+        if (loaded == 0) {
+            // First page has to be indexed too, `Index.updateSmallestKey()` changes the first entry
+            index.insert(new IndexRecord(record.key, pageNum));
+            index.smallestKey = record.key;
+        } else if (newPage) {
+            index.insert(new IndexRecord(record.key, pageNum));
+        }
+        loaded++;
+    }
+}
@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Iterates not deleted records of a file page after page in storage order, pages are read ahead in runs.
+// Records of a page are copied out, so the page can be evicted while they are consumed.
+public class SequentialReader implements Iterator<TRecord> {
+    private final PagedFile<TRecordPage> file;
+    private int pageNum;
+    private final ArrayList<TRecord> batch;
+    private int batchPos;
+
+    public SequentialReader(PagedFile<TRecordPage> file) {
+        this.file = file;
+        this.pageNum = 0;
+        this.batch = new ArrayList<>();
+        this.batchPos = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (batchPos == batch.size() && pageNum < file.pageAmount) {
+                loadNextPage();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return batchPos < batch.size();
+    }
+
+    @Override
+    public TRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return batch.get(batchPos++);
+    }
+
+    private void loadNextPage() throws IOException {
+        batch.clear();
+        batchPos = 0;
+        file.prefetch(pageNum, file.bufferPool.capacity());
+        TRecordPage page = file.getPinnedPage(pageNum);
+        try {
+            for (int i = 0; i < page.recordAmount; i++) {
+                if (!page.isDeleted(i)) {
+                    batch.add(page.getRecordFromPos(i));
+                }
+            }
+        } finally {
+            file.unpin(page);
+        }
+        pageNum++;
+    }
+}
@@ -1,4 +1,4 @@
-import java.io.*;
+import java.nio.ByteBuffer;
 
 public class TRecord extends Record {
     public static class NextRecordPos {
@@ -47,34 +47,35 @@ public class TRecord extends Record {
         this.h = h;
     }
 
+    public static final int SIZE_BYTES = 1 + // deleted
+        Integer.BYTES * 3 // key, nextRecordPageNum, nextRecordPagePos
+        + Double.BYTES * 3; // a, b, h
+
     @Override
-    public void serializeData(DataOutputStream dos) throws IOException {
-        dos.writeBoolean(deleted);
-        dos.writeInt(key);
-        dos.writeDouble(a);
-        dos.writeDouble(b);
-        dos.writeDouble(h);
-        dos.writeInt(next.pageNum);
-        dos.writeInt(next.pagePos);
+    public void serializeData(ByteBuffer buffer) {
+        buffer.put((byte) (deleted ? 1 : 0));
+        buffer.putInt(key);
+        buffer.putDouble(a);
+        buffer.putDouble(b);
+        buffer.putDouble(h);
+        buffer.putInt(next.pageNum);
+        buffer.putInt(next.pagePos);
     }
 
     @Override
-    public void deserializeData(DataInputStream dis) throws IOException {
-        deleted = dis.readBoolean();
-        key = dis.readInt();
-        a = dis.readDouble();
-        b = dis.readDouble();
-        h = dis.readDouble();
-        next.pageNum = dis.readInt();
-        next.pagePos = dis.readInt();
-
+    public void deserializeData(ByteBuffer buffer) {
+        deleted = buffer.get() != 0;
+        key = buffer.getInt();
+        a = buffer.getDouble();
+        b = buffer.getDouble();
+        h = buffer.getDouble();
+        next.pageNum = buffer.getInt();
+        next.pagePos = buffer.getInt();
     }
 
     @Override
     public int getSizeBytes() {
-        return 1 + // deleted
-            Integer.BYTES * 3 // key, nextRecordPageNum, nextRecordPagePos
-            + Double.BYTES * 3; // a, b, h
+        return SIZE_BYTES;
     }
 
     @Override
@@ -1,69 +1,230 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
 
+// Records are stored column by column, `TRecord` objects are created only on request
 public class TRecordPage extends Page<TRecord> {
-
-    @Override
-    protected TRecord createRecordInstance() {
-        return new TRecord();
-    }
-
-    @Override
-    protected TRecord[] createRecordArray() {
-        return new TRecord[pageSize];
-    }
+    int[] keys;
+    double[] a;
+    double[] b;
+    double[] h;
+    int[] nextPage;
+    int[] nextPos;
+    BitSet deleted;
 
     public TRecordPage(int pageSize) {
         super(pageSize);
+        keys = new int[pageSize];
+        a = new double[pageSize];
+        b = new double[pageSize];
+        h = new double[pageSize];
+        nextPage = new int[pageSize];
+        nextPos = new int[pageSize];
+        deleted = new BitSet(pageSize);
     }
 
     @Override
-    protected void serializeBody(DataOutputStream dos) throws IOException {
+    protected void serializeBody(ByteBuffer buffer) {
         // TODO: Change to handle empty spaces
-        for (TRecord record : data) {
-            record.serializeData(dos);
+        for (int i = 0; i < pageSize; i++) {
+            buffer.put((byte) (deleted.get(i) ? 1 : 0));
+            buffer.putInt(keys[i]);
+            buffer.putDouble(a[i]);
+            buffer.putDouble(b[i]);
+            buffer.putDouble(h[i]);
+            buffer.putInt(nextPage[i]);
+            buffer.putInt(nextPos[i]);
         }
     }
 
     @Override
-    protected void deserializeBody(DataInputStream dis) throws IOException {
+    protected void deserializeBody(ByteBuffer buffer) {
         // TODO: Change to handle empty spaces
         for (int i = 0; i < pageSize; i++) {
-            TRecord r = new TRecord();
-            r.deserializeData(dis);
-            data[i] = r;
+            deleted.set(i, buffer.get() != 0);
+            keys[i] = buffer.getInt();
+            a[i] = buffer.getDouble();
+            b[i] = buffer.getDouble();
+            h[i] = buffer.getDouble();
+            nextPage[i] = buffer.getInt();
+            nextPos[i] = buffer.getInt();
         }
     }
 
+    public int keyAt(int pos) {
+        return keys[pos];
+    }
+
+    @Override
+    public boolean isDeleted(int pos) {
+        return deleted.get(pos);
+    }
+
+    public boolean hasNext(int pos) {
+        return nextPos[pos] != -1 && nextPage[pos] != -1;
+    }
+
+    public int nextPageAt(int pos) {
+        return nextPage[pos];
+    }
+
+    public int nextPosAt(int pos) {
+        return nextPos[pos];
+    }
+
+    public void setNext(int pos, int pageNum, int pagePos) {
+        nextPage[pos] = pageNum;
+        nextPos[pos] = pagePos;
+    }
+
+    public void setDeleted(int pos) {
+        deleted.set(pos);
+    }
+
+    public void setData(int pos, TRecord record) {
+        a[pos] = record.a;
+        b[pos] = record.b;
+        h[pos] = record.h;
+    }
+
+    public void setRecord(int pos, TRecord record) {
+        deleted.set(pos, record.deleted);
+        keys[pos] = record.key;
+        setData(pos, record);
+        setNext(pos, record.next.pageNum, record.next.pagePos);
+    }
+
+    // Allocation free alternative to `getRecordFromPos()`
+    public void readRecord(int pos, TRecord dst) {
+        dst.deleted = deleted.get(pos);
+        dst.key = keys[pos];
+        dst.a = a[pos];
+        dst.b = b[pos];
+        dst.h = h[pos];
+        dst.next.pageNum = nextPage[pos];
+        dst.next.pagePos = nextPos[pos];
+    }
+
+    // Returns detached copy, changes have to be applied with `setRecord()`
+    @Override
+    protected TRecord getRecordFromPos(int pos) {
+        if (pos < 0 || pos >= pageSize) {
+            return null;
+        }
+        TRecord r = new TRecord();
+        readRecord(pos, r);
+        return r;
+    }
 
     @Override
     protected int insert(TRecord record) {
         if (isFull()) {
             throw new IllegalStateException("Trying to insert TRecord to non-available page");
         }
-        data[recordAmount] = record;
+        setRecord(recordAmount, record);
         recordAmount++;
         return 0;
     }
 
+    // Records are kept sorted by key, so the tail is shifted by one to make space for `record`
     protected int insertAndSort(TRecord record) {
-        insert(record);
-        sortPageByKey();
+        if (isFull()) {
+            throw new IllegalStateException("Trying to insert TRecord to non-available page");
+        }
+        int pos = upperBound(record.key);
+        int moved = recordAmount - pos;
+        System.arraycopy(keys, pos, keys, pos + 1, moved);
+        System.arraycopy(a, pos, a, pos + 1, moved);
+        System.arraycopy(b, pos, b, pos + 1, moved);
+        System.arraycopy(h, pos, h, pos + 1, moved);
+        System.arraycopy(nextPage, pos, nextPage, pos + 1, moved);
+        System.arraycopy(nextPos, pos, nextPos, pos + 1, moved);
+        for (int i = recordAmount; i > pos; i--) {
+            deleted.set(i, deleted.get(i - 1));
+        }
+        setRecord(pos, record);
+        recordAmount++;
         return 0;
     }
 
+    // Returns deleted position whose record has no overflow chain and whose removal leaves `key` right after
+    // a record without chain, so `key` can take the slot without splitting a chain. -1 if none.
+    // First position is taken only by the same key, which is in the index.
+    public int reclaimablePos(int key) {
+        // `key` goes after all records with keys up to it
+        int after = upperBound(key);
+        for (int i = deleted.nextSetBit(keys[0] == key ? 0 : 1); i >= 0 && i < recordAmount; i = deleted.nextSetBit(i + 1)) {
+            if (hasNext(i)) {
+                continue;
+            }
+            int prev = i == after - 1 ? after - 2 : after - 1;
+            if (prev == -1 ? i == 0 : !hasNext(prev)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Drops record at `pos` and inserts `record` in key order instead
+    public void replace(int pos, TRecord record) {
+        int moved = recordAmount - pos - 1;
+        System.arraycopy(keys, pos + 1, keys, pos, moved);
+        System.arraycopy(a, pos + 1, a, pos, moved);
+        System.arraycopy(b, pos + 1, b, pos, moved);
+        System.arraycopy(h, pos + 1, h, pos, moved);
+        System.arraycopy(nextPage, pos + 1, nextPage, pos, moved);
+        System.arraycopy(nextPos, pos + 1, nextPos, pos, moved);
+        for (int i = pos; i < recordAmount - 1; i++) {
+            deleted.set(i, deleted.get(i + 1));
+        }
+        recordAmount--;
+        insertAndSort(record);
+    }
+
+    // Returns first position with key not smaller than `key`
+    private int lowerBound(int key) {
+        int lo = 0;
+        int hi = recordAmount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Returns first position with key bigger than `key`
+    private int upperBound(int key) {
+        int lo = 0;
+        int hi = recordAmount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
     @Override
     protected int delete(int key) {
-        for (int i = 0; i < recordAmount; i++) {
-            if (data[i].key == key) {
+        int pos = getPosFromKey(key);
+        if (pos == -1) return -1;
 
-                if (data[i].deleted) return -1;
+        deleted.set(pos);
+        return 0;
+    }
 
-                data[i].deleted = true;
-                return 0;
+    // Returns position of not deleted record with `key` or -1.
+    // Deleted record may be followed by the same key inserted again.
+    private int getPosFromKey(int key) {
+        for (int i = lowerBound(key); i < recordAmount && keys[i] == key; i++) {
+            if (!deleted.get(i)) {
+                return i;
             }
         }
         return -1;
@@ -71,64 +232,48 @@ public class TRecordPage extends Page<TRecord> {
 
     @Override
     protected int updateHard(int key, TRecord record) {
-        int pos = getPosFromRecord(record);
+        int pos = getPosFromKey(record.key);
         if (pos == -1) return -1;
-        data[pos] = record;
+        setRecord(pos, record);
         return pos;
     }
 
     @Override
     protected int updateSoft(int key, TRecord record) {
-        int pos = getPosFromRecord(record);
+        int pos = getPosFromKey(record.key);
         if (pos == -1) return -1;
-        data[pos].a = record.a;
-        data[pos].b = record.b;
-        data[pos].h = record.h;
+        setData(pos, record);
         return 0;
     }
 
-    @Override
-    protected TRecord getRecord(int key) {
+    // Returns position of not deleted record with `key` or -1
+    public int findPos(int key) {
         if (isEmpty()) {
             throw new IllegalStateException("Trying to get TRecord from empty page");
         }
-        for (int i = 0; i < pageSize; i++) {
-            if (data[i].key == key && !data[i].deleted) {
-                return data[i];
-            }
-        }
-        return null;
+        return getPosFromKey(key);
     }
 
     @Override
-    protected int getSizeBytesRest() {
-        return new TRecord().getSizeBytes() * pageSize;
+    protected TRecord getRecord(int key) {
+        int pos = findPos(key);
+        return pos == -1 ? null : getRecordFromPos(pos);
+    }
 
+    @Override
+    protected int getSizeBytesRest() {
+        return TRecord.SIZE_BYTES * pageSize;
     }
 
     public boolean isOverflown() {
         for (int i = 0; i < recordAmount; i++) {
-            if (data[i].next.exists()) return true;
+            if (hasNext(i)) return true;
         }
         return false;
     }
 
-    public TRecord findPrevious(int key) {
-        int lastPos = -1;
-        for (int i = 0; i < recordAmount; i++) {
-            if (data[i].key < key) {
-                lastPos = i;
-            }
-        }
-        return lastPos == -1 ? null : data[lastPos];
-    }
-
-    public void sortPageByKey() {
-        Arrays.sort(
-            data,
-            0,
-            recordAmount,
-            Comparator.comparingInt(r -> r.key)
-        );
+    // Returns position of the last record with smaller key or -1
+    public int findPreviousPos(int key) {
+        return lowerBound(key) - 1;
     }
 }
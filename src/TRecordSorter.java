@@ -0,0 +1,131 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+// External merge sort of records by key, only `runSize` records are kept in memory at once.
+// Sorted runs are written to temporary files and merged while the result is iterated,
+// input smaller than a single run is sorted in memory.
+public class TRecordSorter {
+    private static class Run {
+        final File file;
+        final DataInputStream in;
+        final byte[] bytes = new byte[TRecord.SIZE_BYTES];
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long remaining;
+        TRecord head;
+
+        Run(File file, long amount) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            this.remaining = amount;
+        }
+
+        // Returns false (and removes the file) when the run is exhausted
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                in.close();
+                file.delete();
+                head = null;
+                return false;
+            }
+            in.readFully(bytes);
+            head = new TRecord();
+            head.deserialize(buffer);
+            remaining--;
+            return true;
+        }
+    }
+
+    public static Iterator<TRecord> sort(Iterator<TRecord> input, int runSize) throws IOException {
+        Runs runs = new Runs(runSize);
+        while (input.hasNext()) {
+            runs.add(input.next());
+        }
+        return runs.sorted();
+    }
+
+    // Collects records one by one for `sort()`, so callers spreading records over several sorts need no iterator
+    public static class Runs {
+        private final int runSize;
+        private final ArrayList<Run> runs = new ArrayList<>();
+        private final ArrayList<TRecord> run = new ArrayList<>();
+
+        public Runs(int runSize) {
+            if (runSize < 1) {
+                throw new IllegalArgumentException("Run size has to be positive");
+            }
+            this.runSize = runSize;
+        }
+
+        public void add(TRecord record) throws IOException {
+            run.add(record);
+            if (run.size() == runSize) {
+                runs.add(writeRun(run));
+                run.clear();
+            }
+        }
+
+        // Records added so far in key order, it can be called only once
+        public Iterator<TRecord> sorted() throws IOException {
+            if (runs.isEmpty()) {
+                // Everything fits into memory, nothing has to be written
+                run.sort(Comparator.comparingInt(r -> r.key));
+                return run.iterator();
+            }
+            if (!run.isEmpty()) {
+                runs.add(writeRun(run));
+                run.clear();
+            }
+
+            PriorityQueue<Run> queue = new PriorityQueue<>(Math.max(runs.size(), 1), Comparator.comparingInt((Run r) -> r.head.key));
+            for (Run r : runs) {
+                if (r.advance()) {
+                    queue.add(r);
+                }
+            }
+
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return !queue.isEmpty();
+                }
+
+                @Override
+                public TRecord next() {
+                    Run r = queue.poll();
+                    if (r == null) {
+                        throw new NoSuchElementException();
+                    }
+                    TRecord next = r.head;
+                    try {
+                        if (r.advance()) {
+                            queue.add(r);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return next;
+                }
+            };
+        }
+    }
+
+    private static Run writeRun(ArrayList<TRecord> run) throws IOException {
+        run.sort(Comparator.comparingInt(r -> r.key));
+
+        File file = File.createTempFile("isam_run_", ".dat");
+        file.deleteOnExit();
+        ByteBuffer buffer = ByteBuffer.allocate(TRecord.SIZE_BYTES);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (TRecord r : run) {
+                r.serialize(buffer);
+                out.write(buffer.array());
+            }
+        }
+        return new Run(file, run.size());
+    }
+}
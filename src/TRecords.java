@@ -1,12 +1,36 @@
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class TRecords extends PagedFile<TRecordPage> {
     Overflow overflow;
+    final OverflowFilter filter;
 
-    public TRecords(String filename, String overflow, int pageSize) throws FileNotFoundException {
-        super(filename, pageSize);
-        this.overflow = new Overflow(overflow, pageSize);
+    // Overflow inserts and deletions per primary page since it was last rebuilt, only kept in memory
+    private int[] pageDamage = new int[0];
+
+    // Following primary page in key order, -1 after the last one. Null while it is always the next page number,
+    // which holds until a page is split (see `PageSplitter`). Changed only by the writer under the page write latch.
+    private volatile int[] keyOrderNext;
+    // Pages split so far; lookups that missed try again when it changed meanwhile
+    volatile int splitCount;
+    // Set when the files are released, e.g. replaced by reorganization; open cursors check it
+    volatile boolean closed;
+
+    public TRecords(String filename, String overflow, int pageSize) throws IOException {
+        this(filename, overflow, pageSize, DEFAULT_BUFFER_FRAMES, IPageStorage.Mode.RANDOM_ACCESS);
+    }
+
+    public TRecords(String filename, String overflow, int pageSize, int bufferFrames, IPageStorage.Mode storageMode) throws IOException {
+        super(filename, pageSize, bufferFrames, storageMode);
+        this.overflow = new Overflow(overflow, pageSize, bufferFrames, storageMode);
+        this.filter = new OverflowFilter(pageSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        super.close();
+        overflow.close();
     }
 
     @Override
@@ -20,103 +44,317 @@ public class TRecords extends PagedFile<TRecordPage> {
     // - 2 if overflow occurred and `record` was inserted to existing overflow linked list
     // - 3 if the key was smaller than the smallest one in records (needs index update)
     // - 4 if record was inserted into a new page (requires index insert)
-    public TRecord getRecord(int key, int pageNum) throws IOException {
-        TRecordPage trp = getPage(pageNum);
+    // Found record is copied into `dst` (if not null)
+    public boolean getRecord(int key, int pageNum, TRecord dst) throws IOException {
+        TRecordPage trp = getPinnedPage(pageNum);
+        int chainPageNum;
+        int chainPagePos;
+        trp.latch.readLock().lock();
+        try {
+            int onPagePos = trp.findPos(key);
+            if (onPagePos != -1) {
+                if (dst != null) {
+                    trp.readRecord(onPagePos, dst);
+                }
+                return true;
+            }
+            if (!trp.isOverflown()) {
+                return false;
+            }
+            int rootPos = trp.findPreviousPos(key);
+            if (rootPos == -1) {
+                return false;
+            }
+            // Writers add keys to the filter under the write latch, so it is up to date here
+            if (!filter.mightContain(pageNum, key)) {
+                filter.skippedWalks.incrementAndGet();
+                return false;
+            }
+            chainPageNum = trp.nextPageAt(rootPos);
+            chainPagePos = trp.nextPosAt(rootPos);
+            overflow.chainWalkers.incrementAndGet();
+        } finally {
+            trp.latch.readLock().unlock();
+            unpin(trp);
+        }
+        // Overflow records never move and unlinked slots are not reused during the walk,
+        // so the chain stays valid after the primary page is released
+        boolean found;
+        try {
+            found = overflow.findRecord(chainPageNum, chainPagePos, key, dst);
+        } finally {
+            overflow.chainWalkers.decrementAndGet();
+        }
+        if (!found && filter.isComplete()) {
+            filter.falsePositives.incrementAndGet();
+        }
+        return found;
+    }
 
-        TRecord onPageRecord = trp.getRecord(key);
-        if (onPageRecord != null) {
-            return onPageRecord;
+    // Same as `getRecord()` for the writer, which holds the write latch of page `trp`, so chains do not change
+    boolean contains(TRecordPage trp, int key) throws IOException {
+        if (!trp.isEmpty() && trp.findPos(key) != -1) {
+            return true;
         }
-        if (trp.isOverflown()) {
-            TRecord rootRecord = trp.findPrevious(key);
-            if (rootRecord != null) {
-                return overflow.findRecord(rootRecord, key);
-            }
+        int rootPos = trp.findPreviousPos(key);
+        if (rootPos == -1 || !trp.hasNext(rootPos)) {
+            return false;
         }
-        return null;
+        if (!filter.mightContain(trp.pageNum, key)) {
+            filter.skippedWalks.incrementAndGet();
+            return false;
+        }
+        boolean found = overflow.findRecord(trp.nextPageAt(rootPos), trp.nextPosAt(rootPos), key, null);
+        if (!found && filter.isComplete()) {
+            filter.falsePositives.incrementAndGet();
+        }
+        return found;
+    }
+
+    // Writer keeps the primary page latched for the whole operation, overflow pages are latched only while changed
+    TRecordPage latchForWrite(int pageNum) throws IOException {
+        TRecordPage trp = getPinnedPage(pageNum);
+        trp.latch.writeLock().lock();
+        return trp;
+    }
+
+    void release(TRecordPage trp) {
+        trp.latch.writeLock().unlock();
+        unpin(trp);
     }
 
     public int insert(TRecord recordToInsert, int pageNum) throws IOException {
-        TRecordPage trp = getPage(pageNum);
-        int trpRememberedFirstKey = trp.data[0].key;
+        TRecordPage trp = latchForWrite(pageNum);
+        try {
+            return insert(trp, recordToInsert);
+        } finally {
+            release(trp);
+        }
+    }
+
+    // Page `trp` is latched for write by the caller, see `latchForWrite()`
+    int insert(TRecordPage trp, TRecord recordToInsert) throws IOException {
+        int pageNum = trp.pageNum;
+        int trpRememberedFirstKey = trp.keyAt(0);
+
+        // Deleted slot is taken over first, so deleted records do not pile up until reorganization.
+        // First record is dropped only for the same key, its key is in the index.
+        int reclaimed = trp.reclaimablePos(recordToInsert.key);
+        if (reclaimed != -1) {
+            trp.replace(reclaimed, recordToInsert);
+            markDirty(trp);
+            fileDeletedAmount--;
+            return 0;
+        }
 
         if (!trp.isFull()) {
             trp.insertAndSort(recordToInsert);
+            markDirty(trp);
             fileInsertedAmount++;
-            if (trp.data[0].key != trpRememberedFirstKey) {
+            if (trp.keyAt(0) != trpRememberedFirstKey) {
                 // Index has change - needs update
                 return 3;
             }
             return 0;
         }
 
-        if (pageNum == 0 && recordToInsert.key < trp.data[0].key) {
-            TRecord recordToTransfer = trp.data[0];
+        // Key without previous record takes position 0 and the record there moves to the chain. Smaller keys
+        // than the first one go only to the first page, the same key comes when the deleted first record has a chain.
+        if (trp.findPreviousPos(recordToInsert.key) == -1) {
+            TRecord recordToTransfer = trp.getRecordFromPos(0);
             recordToInsert.next = recordToTransfer.next;
             recordToTransfer.next = new TRecord.NextRecordPos();
-            trp.data[0] = recordToInsert;
+            trp.setRecord(0, recordToInsert);
+            markDirty(trp);
+            // Deleted record is not kept
+            if (recordToTransfer.deleted) {
+                fileDeletedAmount--;
+                return recordToInsert.key != trpRememberedFirstKey ? 3 : 0;
+            }
+            addDamage(pageNum);
+            filter.add(pageNum, recordToTransfer.key);
             if (recordToInsert.next.exists()) {
-                overflow.insertToExistingLL(recordToInsert, recordToTransfer);
+                overflow.insertToExistingLL(trp, 0, recordToTransfer);
             } else {
-                overflow.insertToNewLL(recordToInsert, recordToTransfer);
+                overflow.insertToNewLL(trp, 0, recordToTransfer);
             }
             return 3;
         }
 
         // Find previous record
-        TRecord rootRecord = trp.findPrevious(recordToInsert.key);
+        int rootPos = trp.findPreviousPos(recordToInsert.key);
 
         // After previous condition we know, that current page is full
         // If current page is also the last page and previousRecord is at last pos
         // - we do not add to overflow but add to new page
-        if (trp.pageNum == (pageAmount - 1) && trp.data[pageSize - 1].key == rootRecord.key) {
-            TRecordPage newPage = getNewPage();
-            newPage.insertAndSort(recordToInsert);
+        // (unless its chain already holds greater keys, moved there from the first page while it was the only one)
+        if (isLastInKeyOrder(trp.pageNum) && trp.keyAt(pageSize - 1) == trp.keyAt(rootPos) && !trp.hasNext(rootPos)) {
+            TRecordPage newPage = getPinnedNewPage();
+            newPage.latch.writeLock().lock();
+            try {
+                newPage.insertAndSort(recordToInsert);
+                markDirty(newPage);
+                linkAfter(trp.pageNum, newPage.pageNum);
+            } finally {
+                release(newPage);
+            }
             fileInsertedAmount++;
             return 4;
         }
 
+        // Link of record at `rootPos` is going to change
+        markDirty(trp);
+
+        addDamage(pageNum);
+        filter.add(pageNum, recordToInsert.key);
         // If this record has link to overflow
-        if (rootRecord.next.exists()) {
-            overflow.insertToExistingLL(rootRecord, recordToInsert);
+        if (trp.hasNext(rootPos)) {
+            overflow.insertToExistingLL(trp, rootPos, recordToInsert);
             return 1;
         }
         // If this record has no link
-        overflow.insertToNewLL(rootRecord, recordToInsert);
+        overflow.insertToNewLL(trp, rootPos, recordToInsert);
         return 2;
     }
 
     public int updateRecord(TRecord recordUpdate, int pageNum) throws IOException {
-        TRecordPage trp = getPage(pageNum);
+        TRecordPage trp = latchForWrite(pageNum);
+        try {
+            return updateRecord(trp, recordUpdate);
+        } finally {
+            release(trp);
+        }
+    }
+
+    private int updateRecord(TRecordPage trp, TRecord recordUpdate) throws IOException {
         int r = trp.updateSoft(recordUpdate.key, recordUpdate);
         if (r == 0) {
+            markDirty(trp);
             return 0;
         }
         if (trp.isOverflown()) {
-            TRecord rootRecord = trp.findPrevious(recordUpdate.key);
-            if (rootRecord != null && rootRecord.next.exists()) {
-                return overflow.updateRecord(rootRecord, recordUpdate);
+            int rootPos = trp.findPreviousPos(recordUpdate.key);
+            if (rootPos != -1 && trp.hasNext(rootPos)) {
+                return overflow.updateRecord(trp.nextPageAt(rootPos), trp.nextPosAt(rootPos), recordUpdate);
             }
         }
         return -1;
     }
 
     public int deleteRecord(int key, int pageNum) throws IOException {
-        TRecordPage trp = getPage(pageNum);
+        TRecordPage trp = latchForWrite(pageNum);
+        try {
+            return deleteRecord(trp, key);
+        } finally {
+            release(trp);
+        }
+    }
+
+    private int deleteRecord(TRecordPage trp, int key) throws IOException {
         int r = trp.delete(key);
         if (r == 0) {
+            markDirty(trp);
             fileDeletedAmount++;
+            addDamage(trp.pageNum);
             return 0;
         }
         if (trp.isOverflown()) {
-            TRecord rootRecord = trp.findPrevious(key);
-            if (rootRecord != null && rootRecord.next.exists()) {
-                return overflow.deleteRecord(rootRecord, key);
+            int rootPos = trp.findPreviousPos(key);
+            if (rootPos != -1 && trp.hasNext(rootPos)) {
+                int chainPageNum = trp.nextPageAt(rootPos);
+                int chainPagePos = trp.nextPosAt(rootPos);
+                r = overflow.deleteRecord(trp, rootPos, key);
+                if (r == 0) {
+                    addDamage(trp.pageNum);
+                }
+                // First record of the chain was unlinked
+                if (trp.nextPageAt(rootPos) != chainPageNum || trp.nextPosAt(rootPos) != chainPagePos) {
+                    markDirty(trp);
+                }
+                return r;
             }
         }
         return -1;
     }
 
+    public int nextInKeyOrder(int pageNum) {
+        int[] next = keyOrderNext;
+        if (next == null) {
+            return pageNum + 1 < pageAmount ? pageNum + 1 : -1;
+        }
+        return pageNum < next.length ? next[pageNum] : -1;
+    }
+
+    public boolean isLastInKeyOrder(int pageNum) {
+        return nextInKeyOrder(pageNum) == -1;
+    }
+
+    // Page number and key order are the same, true until a page is split
+    public boolean isInPageOrder() {
+        return keyOrderNext == null;
+    }
+
+    // Puts page `newPageNum` (the last page of the file) right after page `pageNum` in key order
+    void linkAfter(int pageNum, int newPageNum) {
+        int[] next = keyOrderNext;
+        if (next == null) {
+            if (pageNum == newPageNum - 1) {
+                return;
+            }
+            next = new int[Math.max(newPageNum + 1, 16)];
+            for (int p = 0; p < newPageNum; p++) {
+                next[p] = p + 1 < newPageNum ? p + 1 : -1;
+            }
+        } else if (newPageNum >= next.length) {
+            next = Arrays.copyOf(next, Math.max(newPageNum + 1, next.length * 2));
+        }
+        // New page links on first, so a reader following the links never gets lost
+        next[newPageNum] = next[pageNum];
+        next[pageNum] = newPageNum;
+        keyOrderNext = next;
+    }
+
+    // Restores key order of an opened file from the index, `pageOrder` holds all primary pages
+    public void setKeyOrder(int[] pageOrder) {
+        boolean inPageOrder = true;
+        for (int i = 0; i < pageOrder.length; i++) {
+            inPageOrder &= pageOrder[i] == i;
+        }
+        if (inPageOrder) {
+            keyOrderNext = null;
+            return;
+        }
+        int[] next = new int[Math.max(pageOrder.length, 16)];
+        for (int i = 0; i < pageOrder.length; i++) {
+            next[pageOrder[i]] = i + 1 < pageOrder.length ? pageOrder[i + 1] : -1;
+        }
+        keyOrderNext = next;
+    }
+
+    private void addDamage(int pageNum) {
+        if (pageNum >= pageDamage.length) {
+            pageDamage = Arrays.copyOf(pageDamage, Math.max(pageNum + 1, pageDamage.length * 2));
+        }
+        pageDamage[pageNum]++;
+    }
+
+    // Returns primary page with the most overflow inserts and deletions, -1 if no page has any
+    public int mostDamagedPage() {
+        int worst = -1;
+        for (int p = 0; p < Math.min(pageDamage.length, pageAmount); p++) {
+            if (pageDamage[p] > 0 && (worst == -1 || pageDamage[p] > pageDamage[worst])) {
+                worst = p;
+            }
+        }
+        return worst;
+    }
+
+    public void clearDamage(int pageNum) {
+        if (pageNum < pageDamage.length) {
+            pageDamage[pageNum] = 0;
+        }
+    }
+
     @Override
     public void print() throws IOException {
         super.print();
@@ -0,0 +1,177 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ISAMTest {
+    static final int PAGE_SIZE = 4;
+
+    @TempDir
+    Path dir;
+    ISAM isam;
+
+    // Keys 0, 10, ..., 110 inserted in order fill pages [0..30], [40..70] and [80..110]
+    @BeforeEach
+    void setUp() throws IOException {
+        isam = new ISAM(dir.resolve("index.dat").toString(), dir.resolve("records.dat").toString(),
+            dir.resolve("overflow.dat").toString(), PAGE_SIZE);
+        for (int key = 0; key < 120; key += 10) {
+            isam.insert(record(key, key));
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        isam.cleanupFull();
+        isam.close();
+    }
+
+    ISAM open() throws IOException {
+        return ISAM.open(dir.resolve("index.dat").toString(), dir.resolve("records.dat").toString(),
+            dir.resolve("overflow.dat").toString(), PagedFile.DEFAULT_BUFFER_FRAMES, IPageStorage.Mode.RANDOM_ACCESS);
+    }
+
+    static TRecord record(int key, double a) {
+        return new TRecord(key, a, key, key);
+    }
+
+    void assertLive(int key, double a) throws IOException {
+        TRecord r = isam.get(key);
+        assertNotNull(r, "key " + key);
+        assertEquals(a, r.a, "key " + key);
+    }
+
+    @Test
+    void reinsertFirstKeyOfFullPage() throws IOException {
+        assertEquals(0, isam.delete(40));
+        assertNull(isam.get(40));
+        assertEquals(0, isam.insert(record(40, -40)));
+        assertLive(40, -40);
+        for (int key = 50; key < 120; key += 10) {
+            assertLive(key, key);
+        }
+        assertEquals(0, isam.deletedRecordAmount());
+    }
+
+    @Test
+    void reinsertFirstKeyOfFullPageWithChain() throws IOException {
+        isam.insert(record(45, 45));
+        assertEquals(0, isam.delete(40));
+        assertEquals(0, isam.insert(record(40, -40)));
+        assertLive(40, -40);
+        assertLive(45, 45);
+        assertLive(50, 50);
+        assertEquals(0, isam.deletedRecordAmount());
+    }
+
+    @Test
+    void reinsertFirstKeysInBatch() throws IOException {
+        isam.insert(record(85, 85));
+        isam.delete(40);
+        isam.delete(80);
+        ISAM.InsertOutcome[] outcomes = isam.insertBatch(List.of(record(80, -80), record(40, -40), record(41, 41), record(50, 0)));
+        assertArrayEquals(new ISAM.InsertOutcome[]{ISAM.InsertOutcome.INSERTED, ISAM.InsertOutcome.INSERTED,
+            ISAM.InsertOutcome.INSERTED, ISAM.InsertOutcome.DUPLICATE}, outcomes);
+        assertLive(40, -40);
+        assertLive(41, 41);
+        assertLive(80, -80);
+        assertLive(85, 85);
+        assertLive(50, 50);
+    }
+
+    @Test
+    void deletedTwinDoesNotHideReinsertedKey() throws IOException {
+        isam.delete(50);
+        isam.delete(60);
+        // Takes the slot of 50, deleted 60 stays in front of it
+        assertEquals(0, isam.insert(record(60, -60)));
+        assertLive(60, -60);
+        assertEquals(0, isam.update(record(60, 6)));
+        assertLive(60, 6);
+        assertEquals(0, isam.delete(60));
+        assertNull(isam.get(60));
+        assertEquals(-1, isam.delete(60));
+        assertEquals(-1, isam.update(record(60, 7)));
+        assertEquals(2, isam.deletedRecordAmount());
+    }
+
+    @Test
+    void updateAbsentKeyAfterChain() throws IOException {
+        isam.insert(record(45, 45));
+        assertEquals(-1, isam.update(record(47, 47)));
+        assertEquals(0, isam.update(record(45, -45)));
+        assertLive(45, -45);
+    }
+
+    @Test
+    void openRefusesFilesChangedAfterFlush() throws IOException {
+        isam.flush();
+        ISAM reopened = open();
+        assertNotNull(reopened.get(110));
+        reopened.close();
+
+        // More pages than buffer frames, so some are evicted
+        for (int key = 1000; key < 1400; key++) {
+            isam.insert(record(key, key));
+        }
+        assertThrows(IOException.class, this::open);
+
+        isam.flush();
+        reopened = open();
+        assertNotNull(reopened.get(1399));
+        assertEquals(412, reopened.insertedRecordAmount());
+        reopened.close();
+    }
+
+    @Test
+    void cursorFailsAfterFilesAreReplaced() throws IOException {
+        isam.insert(record(45, 45));
+        ScanCursor cursor = isam.scan(0, Integer.MAX_VALUE);
+        assertEquals(0, cursor.next().key);
+        isam.reorganize(true);
+        // Rest of the first page was loaded before
+        for (int key = 10; key < 40; key += 10) {
+            assertEquals(key, cursor.next().key);
+        }
+        assertThrows(ConcurrentModificationException.class, cursor::hasNext);
+
+        cursor = isam.scan(31, Integer.MAX_VALUE);
+        assertEquals(40, cursor.next().key);
+        assertEquals(45, cursor.next().key);
+    }
+
+    @Test
+    void insertBatchAcrossPages() throws IOException {
+        ArrayList<TRecord> batch = new ArrayList<>();
+        // Chains of full pages, a new last page, existing keys and keys repeated in the batch
+        for (int key = 205; key >= 0; key -= 3) {
+            batch.add(record(key, -key));
+        }
+        batch.add(record(37, 0));
+        batch.add(record(202, 0));
+        ISAM.InsertOutcome[] outcomes = isam.insertBatch(batch);
+        for (int i = 0; i < batch.size(); i++) {
+            int key = batch.get(i).key;
+            boolean existing = key < 120 && key % 10 == 0;
+            boolean repeated = i >= batch.size() - 2;
+            assertEquals(existing || repeated ? ISAM.InsertOutcome.DUPLICATE : ISAM.InsertOutcome.INSERTED, outcomes[i], "key " + key);
+        }
+        for (int key = 0; key <= 205; key++) {
+            if (key < 120 && key % 10 == 0) {
+                assertLive(key, key);
+            } else if ((205 - key) % 3 == 0) {
+                assertLive(key, -key);
+            } else {
+                assertNull(isam.get(key));
+            }
+        }
+    }
+}